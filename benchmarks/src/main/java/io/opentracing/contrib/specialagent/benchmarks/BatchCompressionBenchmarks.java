@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import io.opentracing.contrib.specialagent.common.codec.DictionaryBatchEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.BytesMessageEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bytes on the wire and encoding cost of a batch with {@code BRAVE_BATCH_COMPRESSION=DICTIONARY} compared to the
+ * plain list encoding gzipped, as the http senders do. The dictionary is trained on other batches of the same
+ * made-up service first; sizes are printed when the trial ends, the amortized one including the periodic frames
+ * that carry the dictionary.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class BatchCompressionBenchmarks {
+
+    final static String[] NAMES = {"get /orders", "get /orders/{id}", "post /orders", "select orders",
+            "insert order_lines", "publish order-created", "get /inventory/{sku}"};
+
+    @Param({"JSON_V2", "PROTO3"})
+    public SpanBytesEncoder encoder;
+
+    @Param({"10", "100"})
+    public int batchSize;
+
+    final Random random = new Random(42);
+    DictionaryBatchEncoder dictionary;
+    BytesMessageEncoder messageEncoder;
+    List<byte[]> batch;
+
+    @Setup
+    public void setup() {
+        messageEncoder = BytesMessageEncoder.forEncoding(encoder.encoding());
+        // trains once from 64 batches, then never again, so the measured batch is never part of the dictionary
+        dictionary = DictionaryBatchEncoder.newBuilder()
+                .sampleSpans(512, 512)
+                .retrainBatches(Integer.MAX_VALUE)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            dictionary.encode(encoder.encoding(), batch(batchSize));
+        }
+        batch = batch(batchSize);
+    }
+
+    @TearDown
+    public void printSizes() throws IOException {
+        int frame = dictionary();
+        // one frame in every 100, the default resend interval, carries the dictionary
+        long total = 0;
+        for (int i = 0; i < 100; i++) {
+            total += dictionary();
+        }
+        System.out.printf("%n%s x %d: list %d bytes, gzip %d bytes, dictionary %d bytes (%d amortized)%n",
+                encoder, batchSize, messageEncoder.encode(batch).length, gzip(), frame, total / 100);
+        dictionary.close();
+    }
+
+    @Benchmark
+    public int gzip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(messageEncoder.encode(batch));
+        gzip.close();
+        return out.size();
+    }
+
+    @Benchmark
+    public int dictionary() {
+        return dictionary.encode(encoder.encoding(), batch).length;
+    }
+
+    /** Spans of one service as they would finish: a handful of traces, shared endpoints and names. */
+    List<byte[]> batch(int size) {
+        Endpoint local = Endpoint.newBuilder().serviceName("order-service").ip("10.1.2.3").port(8080).build();
+        Endpoint[] remotes = {
+                Endpoint.newBuilder().serviceName("gateway").ip("10.1.0.7").build(),
+                Endpoint.newBuilder().serviceName("mysql").ip("10.1.4.2").port(3306).build(),
+                Endpoint.newBuilder().serviceName("kafka").ip("10.1.5.9").port(9092).build()
+        };
+        List<byte[]> spans = new ArrayList<>(size);
+        long traceId = random.nextLong();
+        long timestamp = 1570000000000000L + random.nextInt(1000000);
+        for (int i = 0; i < size; i++) {
+            if (i % 5 == 0) {
+                traceId = random.nextLong();
+            }
+            String name = NAMES[random.nextInt(NAMES.length)];
+            Span.Builder span = Span.newBuilder()
+                    .traceId(random.nextLong(), traceId)
+                    .parentId(traceId)
+                    .id(random.nextLong())
+                    .name(name)
+                    .kind(name.startsWith("get") || name.startsWith("post") ? Span.Kind.SERVER : Span.Kind.CLIENT)
+                    .localEndpoint(local)
+                    .remoteEndpoint(remotes[random.nextInt(remotes.length)])
+                    .timestamp(timestamp + i * 137L)
+                    .duration(200 + random.nextInt(50000))
+                    .putTag("component", name.startsWith("select") || name.startsWith("insert") ? "jdbc" : "servlet")
+                    .putTag("thread.name", "http-nio-8080-exec-" + random.nextInt(200));
+            if (span.kind() == Span.Kind.SERVER) {
+                span.putTag("http.method", name.substring(0, name.indexOf(' ')).toUpperCase(Locale.ROOT))
+                        .putTag("http.path", name.substring(name.indexOf(' ') + 1).replace("{id}", Integer.toString(random.nextInt(100000))))
+                        .putTag("http.status_code", random.nextInt(50) == 0 ? "500" : "200");
+            }
+            spans.add(encoder.encode(span.build()));
+        }
+        return spans;
+    }
+}
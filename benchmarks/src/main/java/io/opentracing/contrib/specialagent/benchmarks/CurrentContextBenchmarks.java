@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import io.opentracing.contrib.specialagent.common.context.CurrentContextMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of switching the current context per {@link CurrentContextMode}: opening and closing a scope on a thread
+ * without a context (the start of a task), nesting one inside another, and wrapping a task for an executor
+ * inside and outside a trace.
+ * <p>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar CurrentContextBenchmarks -prof gc}.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CurrentContextBenchmarks {
+
+    final static TraceContext PARENT = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+    final static TraceContext CHILD = TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).sampled(true).build();
+    final static Runnable TASK = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Param({"THREAD_LOCAL", "INHERITABLE", "LIGHTWEIGHT"})
+    public CurrentContextMode mode;
+
+    CurrentTraceContext current;
+
+    @Setup
+    public void setup() {
+        current = mode.create();
+    }
+
+    @Benchmark
+    public TraceContext scope_fromEmpty() {
+        try (CurrentTraceContext.Scope scope = current.newScope(PARENT)) {
+            return current.get();
+        }
+    }
+
+    @Benchmark
+    public TraceContext scope_nested() {
+        try (CurrentTraceContext.Scope parent = current.newScope(PARENT)) {
+            try (CurrentTraceContext.Scope child = current.newScope(CHILD)) {
+                return current.get();
+            }
+        }
+    }
+
+    @Benchmark
+    public Runnable wrap_outsideTrace() {
+        return current.wrap(TASK);
+    }
+
+    @Benchmark
+    public void wrap_andRun_insideTrace() {
+        Runnable wrapped;
+        try (CurrentTraceContext.Scope scope = current.newScope(PARENT)) {
+            wrapped = current.wrap(TASK);
+        }
+        wrapped.run();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import io.opentracing.contrib.specialagent.common.sender.TraceAffinityKafkaSender;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.BytesMessageEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches per second through {@link TraceAffinityKafkaSender} compared to sending the batch as a single message
+ * like zipkin's KafkaSender does. A {@link MockProducer} over a local cluster description stands in for the
+ * broker, so this measures the client side cost of splitting batches by trace.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class KafkaSenderBenchmarks {
+
+    @Param({"JSON_V2", "PROTO3"})
+    public SpanBytesEncoder encoder;
+
+    @Param({"12"})
+    public int partitions;
+
+    MockProducer<byte[], byte[]> producer;
+    TraceAffinityKafkaSender sender;
+    BytesMessageEncoder messageEncoder;
+    List<byte[]> batch = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> infos = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            infos.add(new PartitionInfo("zipkin", i, node, new Node[]{node}, new Node[]{node}));
+        }
+        Set<String> none = Collections.emptySet();
+        producer = new MockProducer<>(new Cluster("local", Collections.singletonList(node), infos, none, none),
+                true, new DefaultPartitioner(), new ByteArraySerializer(), new ByteArraySerializer());
+        sender = TraceAffinityKafkaSender.create(producer, "zipkin", encoder.encoding());
+        messageEncoder = BytesMessageEncoder.forEncoding(encoder.encoding());
+
+        // 100 spans of 20 traces, interleaved as they would finish in a busy service
+        for (int span = 1; span <= 5; span++) {
+            for (int trace = 1; trace <= 20; trace++) {
+                batch.add(encoder.encode(Span.newBuilder()
+                        .traceId(Long.toHexString(trace * 7919L))
+                        .id(span + 1000L * trace)
+                        .name("get /orders")
+                        .localEndpoint(zipkin2.Endpoint.newBuilder().serviceName("orders").ip("10.0.0.1").build())
+                        .putTag("http.path", "/orders")
+                        .build()));
+            }
+        }
+    }
+
+    @Benchmark
+    public Object singleMessage() {
+        producer.clear();
+        return producer.send(new ProducerRecord<byte[], byte[]>("zipkin", messageEncoder.encode(batch)));
+    }
+
+    @Benchmark
+    public Object traceAffinity() throws Exception {
+        producer.clear();
+        return sender.sendSpans(batch).execute();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import io.opentracing.contrib.specialagent.common.propagation.FormatPropagation;
+import io.opentracing.contrib.specialagent.common.propagation.PropagationFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inject and extract cost of each {@link PropagationFormat}. {@code inject_cached} injects the same decorated
+ * context repeatedly, as fan-out calls do; {@code inject_uncached} encodes from scratch every time.
+ * <p>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar PropagationFormatBenchmarks -prof gc}.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PropagationFormatBenchmarks {
+
+    final static Propagation.Setter<Map<String, String>, String> SETTER =
+            new Propagation.Setter<Map<String, String>, String>() {
+                @Override
+                public void put(Map<String, String> carrier, String key, String value) {
+                    carrier.put(key, value);
+                }
+            };
+
+    final static Propagation.Getter<Map<String, String>, String> GETTER =
+            new Propagation.Getter<Map<String, String>, String>() {
+                @Override
+                public String get(Map<String, String> carrier, String key) {
+                    return carrier.get(key);
+                }
+            };
+
+    @Param({"B3", "B3_SINGLE", "W3C"})
+    public PropagationFormat format;
+
+    TraceContext context;
+    TraceContext decorated;
+    TraceContext.Injector<Map<String, String>> injector;
+    TraceContext.Extractor<Map<String, String>> extractor;
+    Map<String, String> incoming = new HashMap<>();
+    Map<String, String> outgoing = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        Propagation.Factory factory = FormatPropagation.newFactory(Collections.singletonList(format));
+        Propagation<String> propagation = factory.create(Propagation.KeyFactory.STRING);
+        injector = propagation.injector(SETTER);
+        extractor = propagation.extractor(GETTER);
+
+        context = TraceContext.newBuilder()
+                .traceIdHigh(0x463ac35c9f6413adL)
+                .traceId(0x48485a3953bb6124L)
+                .parentId(0x2L)
+                .spanId(0xa2fb4a1d1a96d312L)
+                .sampled(true)
+                .build();
+        decorated = factory.decorate(context);
+        injector.inject(context, incoming);
+    }
+
+    @Benchmark
+    public Map<String, String> inject_uncached() {
+        injector.inject(context, outgoing);
+        return outgoing;
+    }
+
+    @Benchmark
+    public Map<String, String> inject_cached() {
+        injector.inject(decorated, outgoing);
+        return outgoing;
+    }
+
+    @Benchmark
+    public TraceContextOrSamplingFlags extract() {
+        return extractor.extract(incoming);
+    }
+
+    @Benchmark
+    public TraceContextOrSamplingFlags extract_absent() {
+        return extractor.extract(Collections.<String, String>emptyMap());
+    }
+}
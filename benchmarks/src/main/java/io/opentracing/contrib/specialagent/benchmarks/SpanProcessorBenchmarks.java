@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import brave.handler.MutableSpan;
+import io.opentracing.contrib.specialagent.common.processor.DropSpanHandler;
+import io.opentracing.contrib.specialagent.common.processor.TagFilterHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-span cost of the processor chain configured through {@code BRAVE_PROCESSOR_*}.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SpanProcessorBenchmarks {
+
+    DropSpanHandler drop = DropSpanHandler.create("GET /health,*/metrics", "http.path=/ready*");
+    TagFilterHandler tagFilter = TagFilterHandler.newBuilder()
+            .deny("sql.query,*.payload")
+            .redact("http.url")
+            .maxValueLength(256)
+            .build();
+    TagFilterHandler cappedTagFilter = TagFilterHandler.newBuilder()
+            .deny("sql.query,*.payload")
+            .maxCount(4)
+            .build();
+
+    MutableSpan span;
+
+    @Setup
+    public void setup() {
+        span = new MutableSpan();
+        span.name("GET /orders");
+        span.tag("http.method", "GET");
+        span.tag("http.path", "/orders");
+        span.tag("http.url", "http://localhost:8080/orders?page=1");
+        span.tag("http.status_code", "200");
+        span.tag("component", "servlet");
+    }
+
+    @Benchmark
+    public boolean drop_kept() {
+        return drop.handle(null, span);
+    }
+
+    @Benchmark
+    public boolean tagFilter() {
+        // the span is not restored between calls, so this measures the steady state of an already clean span
+        return tagFilter.handle(null, span);
+    }
+
+    @Benchmark
+    public boolean tagFilter_capped() {
+        return cappedTagFilter.handle(null, span);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.B3Propagation;
+import brave.sampler.Sampler;
+import io.opentracing.contrib.specialagent.common.resource.ThreadResourceHandler;
+import io.opentracing.contrib.specialagent.common.resource.ThreadResourcePropagationFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@code BRAVE_THREAD_RESOURCE_TAGS}: each {@link ThreadMXBean} reading on its own, and a span started
+ * and finished with and without the measurement. {@code span_unsampled_measured} should match
+ * {@code span_unsampled}, as unsampled spans skip the readings.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadResourceBenchmarks {
+
+    /** not {@link Reporter#NOOP}, which would make Brave skip recording altogether */
+    final static Reporter<Span> DISCARD = new Reporter<Span>() {
+        @Override
+        public void report(Span span) {
+        }
+    };
+
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    final long threadId = Thread.currentThread().getId();
+
+    Tracing sampled;
+    Tracing sampledMeasured;
+    Tracing unsampled;
+    Tracing unsampledMeasured;
+
+    @Setup
+    public void setup() {
+        sampled = tracing(Sampler.ALWAYS_SAMPLE, false);
+        sampledMeasured = tracing(Sampler.ALWAYS_SAMPLE, true);
+        unsampled = tracing(Sampler.NEVER_SAMPLE, false);
+        unsampledMeasured = tracing(Sampler.NEVER_SAMPLE, true);
+    }
+
+    @TearDown
+    public void close() {
+        sampled.close();
+        sampledMeasured.close();
+        unsampled.close();
+        unsampledMeasured.close();
+    }
+
+    static Tracing tracing(Sampler sampler, boolean measured) {
+        Tracing.Builder builder = Tracing.newBuilder().sampler(sampler).spanReporter(DISCARD);
+        if (measured) {
+            builder.propagationFactory(ThreadResourcePropagationFactory.create(B3Propagation.FACTORY))
+                    .addFinishedSpanHandler(ThreadResourceHandler.create());
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public long cpuTime() {
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    @Benchmark
+    public long allocatedBytes() {
+        return allocations.getThreadAllocatedBytes(threadId);
+    }
+
+    @Benchmark
+    public void span_sampled() {
+        span(sampled.tracer());
+    }
+
+    @Benchmark
+    public void span_sampled_measured() {
+        span(sampledMeasured.tracer());
+    }
+
+    @Benchmark
+    public void span_unsampled() {
+        span(unsampled.tracer());
+    }
+
+    @Benchmark
+    public void span_unsampled_measured() {
+        span(unsampledMeasured.tracer());
+    }
+
+    static void span(Tracer tracer) {
+        tracer.newTrace().name("work").start().finish();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.benchmarks;
+
+import brave.Tracing;
+import brave.opentracing.BraveTracer;
+import brave.sampler.Sampler;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.specialagent.common.sampler.DecidedSampler;
+import io.opentracing.contrib.specialagent.common.sampler.UnsampledFastPathTracer;
+import io.opentracing.tag.Tags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unsampled spans through the OpenTracing bridge with and without {@code BRAVE_UNSAMPLED_FAST_PATH}, the way
+ * instrumentation creates them: a new trace, and a tagged child activated under the active unsampled parent.
+ * <p>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar UnsampledSpanBenchmarks -prof gc} and compare
+ * {@code gc.alloc.rate.norm}, the bytes allocated per span.
+ *
+ * @author zhangbin
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(org.openjdk.jmh.annotations.Scope.Thread)
+public class UnsampledSpanBenchmarks {
+
+    @Param({"false", "true"})
+    public boolean fastPath;
+
+    Tracing tracing;
+    Tracer tracer;
+    Span parent;
+    Scope parentScope;
+
+    @Setup
+    public void setup() {
+        DecidedSampler sampler = DecidedSampler.create(Sampler.NEVER_SAMPLE);
+        tracing = Tracing.newBuilder()
+                .sampler(sampler)
+                .spanReporter(ThreadResourceBenchmarks.DISCARD)
+                .build();
+        tracer = BraveTracer.create(tracing);
+        if (fastPath) {
+            tracer = UnsampledFastPathTracer.create(tracer, tracing.currentTraceContext(), sampler);
+        }
+        // setup runs on the benchmark thread, so the parent stays active for child()
+        parent = tracer.buildSpan("get /orders").start();
+        parentScope = tracer.activateSpan(parent);
+    }
+
+    @TearDown
+    public void close() {
+        parentScope.close();
+        parent.finish();
+        tracing.close();
+    }
+
+    @Benchmark
+    public Span newTrace() {
+        Span span = tracer.buildSpan("get /orders")
+                .ignoreActiveSpan()
+                .withTag(Tags.SPAN_KIND, Tags.SPAN_KIND_SERVER)
+                .withTag(Tags.HTTP_METHOD, "GET")
+                .start();
+        span.setTag(Tags.HTTP_STATUS, 200);
+        span.finish();
+        return span;
+    }
+
+    @Benchmark
+    public Span child() {
+        Span span = tracer.buildSpan("select orders")
+                .withTag(Tags.SPAN_KIND, Tags.SPAN_KIND_CLIENT)
+                .withTag(Tags.DB_STATEMENT, "select * from orders")
+                .start();
+        Scope scope = tracer.activateSpan(span);
+        try {
+            span.log("fetched");
+        } finally {
+            scope.close();
+        }
+        span.finish();
+        return span;
+    }
+}
@@ -26,11 +26,30 @@ public interface BraveConstant {
     /** tracing*/
     String BRAVE_SERVICE_NAME = "BRAVE_SERVICE_NAME";
     String BRAVE_TRACE_ID_128BIT = "BRAVE_TRACE_ID_128BIT";
+    /** tags sampled spans with thread.cpu_time_ns and thread.allocated_bytes*/
+    String BRAVE_THREAD_RESOURCE_TAGS = "BRAVE_THREAD_RESOURCE_TAGS";
+    /** decides sampling when a span starts, unsampled spans skip the OpenTracing bridge*/
+    String BRAVE_UNSAMPLED_FAST_PATH = "BRAVE_UNSAMPLED_FAST_PATH";
+
+    /** current context, THREAD_LOCAL, INHERITABLE, LIGHTWEIGHT or AUTO (LIGHTWEIGHT on JDK 21+)*/
+    String BRAVE_CURRENT_CONTEXT = "BRAVE_CURRENT_CONTEXT";
+
+    /** propagation*/
+    String BRAVE_PROPAGATION = "BRAVE_PROPAGATION";
 
     /** sender*/
     String BRAVE_SENDER_TYPE = "BRAVE_SENDER_TYPE";
     String BRAVE_SENDER_ADDRESS = "BRAVE_SENDER_ADDRESS";
 
+    /** kafka sender; any other BRAVE_SENDER_KAFKA_* is a producer property, e.g. _LINGER_MS for linger.ms*/
+    String BRAVE_SENDER_KAFKA_PREFIX = "BRAVE_SENDER_KAFKA_";
+    String BRAVE_SENDER_KAFKA_TOPIC = "BRAVE_SENDER_KAFKA_TOPIC";
+    String BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID = "BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID";
+
+    /** destinations, e.g. BRAVE_DESTINATIONS=kafka,rabbit with BRAVE_DESTINATION_KAFKA_SENDER_TYPE=Kafka11*/
+    String BRAVE_DESTINATIONS = "BRAVE_DESTINATIONS";
+    String BRAVE_DESTINATION_PREFIX = "BRAVE_DESTINATION_";
+
     /** reporter*/
     String BRAVE_MESSAGE_MAX_BYTES = "BRAVE_MESSAGE_MAX_BYTES";
     String BRAVE_CLOSE_TIMEOUT_NANOS = "BRAVE_CLOSE_TIMEOUT_NANOS";
@@ -39,9 +58,39 @@ public interface BraveConstant {
     String BRAVE_QUEUE_MAX_SPANS = "BRAVE_QUEUE_MAX_SPANS";
     String BRAVE_SPAN_BYTES_ENCODER = "BRAVE_SPAN_BYTES_ENCODER";
 
+    /** batching, FIXED (flush every BRAVE_MESSAGE_TIMEOUT_NANOS) or ADAPTIVE (tuned to stay under the latency bound)*/
+    String BRAVE_BATCHING = "BRAVE_BATCHING";
+    String BRAVE_BATCHING_MAX_EXPORT_LATENCY_NANOS = "BRAVE_BATCHING_MAX_EXPORT_LATENCY_NANOS";
+
+    /** batch compression, NONE or DICTIONARY (deflate with a dictionary trained from recent spans)*/
+    String BRAVE_BATCH_COMPRESSION = "BRAVE_BATCH_COMPRESSION";
+    String BRAVE_BATCH_COMPRESSION_DICTIONARY_BYTES = "BRAVE_BATCH_COMPRESSION_DICTIONARY_BYTES";
+    String BRAVE_BATCH_COMPRESSION_RETRAIN_BATCHES = "BRAVE_BATCH_COMPRESSION_RETRAIN_BATCHES";
+
+    /** shutdown, CLOSE (drop what is queued) or DRAIN (send it from a shutdown hook, spilling what misses the deadline)*/
+    String BRAVE_SHUTDOWN_MODE = "BRAVE_SHUTDOWN_MODE";
+    String BRAVE_SHUTDOWN_DRAIN_TIMEOUT_NANOS = "BRAVE_SHUTDOWN_DRAIN_TIMEOUT_NANOS";
+    String BRAVE_SHUTDOWN_DRAIN_CONCURRENCY = "BRAVE_SHUTDOWN_DRAIN_CONCURRENCY";
+    String BRAVE_SHUTDOWN_SPILL_DIR = "BRAVE_SHUTDOWN_SPILL_DIR";
+
+    /** processor*/
+    String BRAVE_PROCESSOR_DROP_SPAN_NAMES = "BRAVE_PROCESSOR_DROP_SPAN_NAMES";
+    String BRAVE_PROCESSOR_DROP_SPAN_TAGS = "BRAVE_PROCESSOR_DROP_SPAN_TAGS";
+    String BRAVE_PROCESSOR_TAG_ALLOW = "BRAVE_PROCESSOR_TAG_ALLOW";
+    String BRAVE_PROCESSOR_TAG_DENY = "BRAVE_PROCESSOR_TAG_DENY";
+    String BRAVE_PROCESSOR_TAG_REDACT = "BRAVE_PROCESSOR_TAG_REDACT";
+    String BRAVE_PROCESSOR_TAG_MAX_VALUE_LENGTH = "BRAVE_PROCESSOR_TAG_MAX_VALUE_LENGTH";
+    String BRAVE_PROCESSOR_TAG_MAX_COUNT = "BRAVE_PROCESSOR_TAG_MAX_COUNT";
+
     /** sampler*/
     String BRAVE_SAMPLER_TYPE = "BRAVE_SAMPLER_TYPE";
     String BRAVE_SAMPLER_PARAM = "BRAVE_SAMPLER_PARAM";
 
+    /** remote sampler, BRAVE_SAMPLER_TYPE=remote; BRAVE_SAMPLER_PARAM applies to the fallback*/
+    String BRAVE_SAMPLER_REMOTE_URL = "BRAVE_SAMPLER_REMOTE_URL";
+    String BRAVE_SAMPLER_REMOTE_FALLBACK_TYPE = "BRAVE_SAMPLER_REMOTE_FALLBACK_TYPE";
+    String BRAVE_SAMPLER_REMOTE_REFRESH_NANOS = "BRAVE_SAMPLER_REMOTE_REFRESH_NANOS";
+    String BRAVE_SAMPLER_REMOTE_CACHE_FILE = "BRAVE_SAMPLER_REMOTE_CACHE_FILE";
+
 
 }
@@ -19,24 +19,54 @@
 package io.opentracing.contrib.specialagent.common;
 
 import brave.Tracing;
+import brave.handler.FinishedSpanHandler;
+import brave.propagation.CurrentTraceContext;
 import brave.opentracing.BraveTracer;
+import brave.propagation.Propagation;
 import brave.sampler.BoundarySampler;
 import brave.sampler.CountingSampler;
 import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
 import io.opentracing.Tracer;
+import io.opentracing.contrib.specialagent.common.codec.DictionaryBatchDecoder;
+import io.opentracing.contrib.specialagent.common.codec.DictionaryBatchEncoder;
+import io.opentracing.contrib.specialagent.common.context.CurrentContextMode;
+import io.opentracing.contrib.specialagent.common.processor.DropSpanHandler;
+import io.opentracing.contrib.specialagent.common.processor.TagFilterHandler;
+import io.opentracing.contrib.specialagent.common.propagation.FormatPropagation;
+import io.opentracing.contrib.specialagent.common.reporter.AdaptiveBatchingReporter;
+import io.opentracing.contrib.specialagent.common.reporter.FanOutReporter;
+import io.opentracing.contrib.specialagent.common.reporter.ShutdownDrain;
+import io.opentracing.contrib.specialagent.common.resource.ThreadResourceHandler;
+import io.opentracing.contrib.specialagent.common.resource.ThreadResourcePropagationFactory;
+import io.opentracing.contrib.specialagent.common.sampler.DecidedSampler;
+import io.opentracing.contrib.specialagent.common.sampler.OperationSamplingTracer;
+import io.opentracing.contrib.specialagent.common.sampler.RemoteSampler;
+import io.opentracing.contrib.specialagent.common.sampler.UnsampledFastPathTracer;
+import io.opentracing.contrib.specialagent.common.sender.DictionaryCompressingSender;
+import io.opentracing.contrib.specialagent.common.propagation.PropagationFormat;
 import zipkin2.Span;
+import zipkin2.codec.Encoding;
 import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
 import zipkin2.reporter.Reporter;
 import zipkin2.reporter.Sender;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -56,8 +86,19 @@ public final class Configuration {
     private Configuration.SamplerConfiguration samplerConfig;
     private Configuration.ReporterConfiguration reporterConfig;
     private Configuration.SenderConfiguration senderConfiguration;
+    private Configuration.PropagationConfiguration propagationConfig;
+    private Configuration.ProcessorConfiguration processorConfig;
+    private Configuration.ContextConfiguration contextConfig;
+    private Configuration.ShutdownConfiguration shutdownConfig;
     private boolean useTraceId128Bit;
-    private BraveTracer tracer;
+    private boolean threadResourceTags;
+    private boolean unsampledFastPath;
+    private Sampler sampler;
+    private DecidedSampler decidedSampler;
+    private Reporter<Span> reporter;
+    private ShutdownDrain drain;
+    private Thread shutdownHook;
+    private Tracer tracer;
 
     private Configuration(String serviceName) {
         this.serviceName = serviceName;
@@ -96,7 +137,7 @@ public final class Configuration {
     }
 
     private static Configuration fromEnv(String serviceName) {
-        return (new Configuration(serviceName)).withTraceId128Bit(getPropertyAsBool(BraveConstant.BRAVE_TRACE_ID_128BIT)).withReporter(Configuration.ReporterConfiguration.fromEnv()).withSampler(Configuration.SamplerConfiguration.fromEnv());
+        return (new Configuration(serviceName)).withTraceId128Bit(getPropertyAsBool(BraveConstant.BRAVE_TRACE_ID_128BIT)).withThreadResourceTags(getPropertyAsBool(BraveConstant.BRAVE_THREAD_RESOURCE_TAGS)).withUnsampledFastPath(getPropertyAsBool(BraveConstant.BRAVE_UNSAMPLED_FAST_PATH)).withReporter(Configuration.ReporterConfiguration.fromEnv()).withSampler(Configuration.SamplerConfiguration.fromEnv()).withPropagation(Configuration.PropagationConfiguration.fromEnv()).withProcessor(Configuration.ProcessorConfiguration.fromEnv()).withContext(Configuration.ContextConfiguration.fromEnv()).withShutdown(Configuration.ShutdownConfiguration.fromEnv());
     }
 
 
@@ -104,7 +145,25 @@ public final class Configuration {
         if (this.tracer != null) {
             return this.tracer;
         } else {
-            this.tracer = BraveTracer.create(this.getTracerBuilder().build());
+            Tracing tracing = this.getTracerBuilder().build();
+            Tracer tracer = BraveTracer.create(tracing);
+            if (this.sampler instanceof RemoteSampler) {
+                // the remote strategy may have per-operation rules, which need the operation name
+                tracer = OperationSamplingTracer.create(tracer, (RemoteSampler) this.sampler, this.decidedSampler);
+            }
+            if (this.unsampledFastPath) {
+                tracer = UnsampledFastPathTracer.create(tracer, tracing.currentTraceContext(), this.decidedSampler);
+            }
+            this.tracer = tracer;
+            if (this.drain != null) {
+                this.shutdownHook = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeTracer();
+                    }
+                }, "brave-shutdown-drain");
+                Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+            }
             logger.log(Level.INFO, "Initialized tracer={}", this.tracer);
             return this.tracer;
         }
@@ -114,8 +173,34 @@ public final class Configuration {
         return Tracing.newBuilder().localServiceName(serviceName);
     }
 
-    public synchronized void closeTracer() {
+    /** With BRAVE_SHUTDOWN_MODE=DRAIN, first sends what the reporter still queues, see {@link ShutdownDrain}. */
+    public void closeTracer() {
+        drainAndCloseTracer();
+    }
+
+    /**
+     * Like {@link #closeTracer()}, for callers that want to know how the drain went.
+     *
+     * @return what the drain did, which it also logs, or null when there was nothing to drain
+     */
+    public synchronized ShutdownDrain.Result drainAndCloseTracer() {
+        ShutdownDrain.Result result = null;
+        if (this.drain != null) {
+            ShutdownDrain drain = this.drain;
+            this.drain = null;
+            if (this.shutdownHook != null && Thread.currentThread() != this.shutdownHook) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down, the hook then finds the drain done
+                }
+            }
+            if (this.reporter instanceof Flushable) {
+                result = drain.drain((Flushable) this.reporter);
+            }
+        }
         tracer.close();
+        return result;
     }
 
 
@@ -132,10 +217,44 @@ public final class Configuration {
             this.senderConfiguration = new Configuration.SenderConfiguration();
         }
 
+        if (this.propagationConfig == null) {
+            this.propagationConfig = new Configuration.PropagationConfiguration();
+        }
 
-        Reporter<Span> reporter = this.reporterConfig.getReporter();
-        Sampler sampler = this.samplerConfig.createSampler();
-        Tracing.Builder builder = this.createTracerBuilder(this.serviceName).sampler(sampler).spanReporter(reporter);
+        if (this.processorConfig == null) {
+            this.processorConfig = new Configuration.ProcessorConfiguration();
+        }
+
+        if (this.contextConfig == null) {
+            this.contextConfig = new Configuration.ContextConfiguration();
+        }
+
+        if (this.shutdownConfig == null) {
+            this.shutdownConfig = new Configuration.ShutdownConfiguration();
+        }
+
+        ShutdownDrain drain = this.drain = this.shutdownConfig.createDrain(this.serviceName);
+        Reporter<Span> reporter = this.reporter = this.reporterConfig.getReporter(drain);
+        Sampler sampler = this.sampler = this.samplerConfig.createSampler();
+        if (sampler instanceof RemoteSampler || this.unsampledFastPath) {
+            // lets the tracer wrappers decide new traces without tagging them
+            sampler = this.decidedSampler = DecidedSampler.create(sampler);
+        }
+        Propagation.Factory propagationFactory = this.propagationConfig.createPropagationFactory();
+        if (this.threadResourceTags) {
+            propagationFactory = ThreadResourcePropagationFactory.create(propagationFactory);
+        }
+        Tracing.Builder builder = this.createTracerBuilder(this.serviceName).sampler(sampler).spanReporter(reporter)
+                .propagationFactory(propagationFactory)
+                .currentTraceContext(this.contextConfig.createCurrentTraceContext());
+        // handlers run in order before the reporter; a handler returning false drops the span
+        for (FinishedSpanHandler handler : this.processorConfig.createHandlers()) {
+            builder.addFinishedSpanHandler(handler);
+        }
+        if (this.threadResourceTags) {
+            // after the processors, so dropped spans cost no counter reads; the tag filter does not see these tags
+            builder.addFinishedSpanHandler(ThreadResourceHandler.create());
+        }
         if (this.useTraceId128Bit) {
             builder.traceId128Bit(true);
         }
@@ -151,6 +270,24 @@ public final class Configuration {
         return value != null ? value : defaultValue;
     }
 
+    /**
+     * Returns the destination specific form of {@code key} (e.g. BRAVE_DESTINATION_KAFKA_SENDER_TYPE for
+     * BRAVE_SENDER_TYPE) when it is defined, otherwise {@code key} itself.
+     */
+    static String destinationKey(String destination, String key) {
+        if (destination == null) {
+            return key;
+        }
+        String destinationKey = scopedKey(destination, key);
+        return getProperty(destinationKey) != null ? destinationKey : key;
+    }
+
+    /** Returns the destination specific form of {@code key}, defined or not. */
+    static String scopedKey(String destination, String key) {
+        return BraveConstant.BRAVE_DESTINATION_PREFIX + destination.toUpperCase(Locale.ROOT) + "_"
+                + key.substring("BRAVE_".length());
+    }
+
     private static String getProperty(String name) {
         return System.getProperty(name, System.getenv(name));
     }
@@ -240,16 +377,49 @@ public final class Configuration {
     }
 
 
+    private Configuration withPropagation(Configuration.PropagationConfiguration propagationConfig) {
+        this.propagationConfig = propagationConfig;
+        return this;
+    }
+
+    private Configuration withProcessor(Configuration.ProcessorConfiguration processorConfig) {
+        this.processorConfig = processorConfig;
+        return this;
+    }
+
+    private Configuration withContext(Configuration.ContextConfiguration contextConfig) {
+        this.contextConfig = contextConfig;
+        return this;
+    }
+
+    private Configuration withShutdown(Configuration.ShutdownConfiguration shutdownConfig) {
+        this.shutdownConfig = shutdownConfig;
+        return this;
+    }
+
     private Configuration withTraceId128Bit(boolean useTraceId128Bit) {
         this.useTraceId128Bit = useTraceId128Bit;
         return this;
     }
 
+    private Configuration withThreadResourceTags(boolean threadResourceTags) {
+        this.threadResourceTags = threadResourceTags;
+        return this;
+    }
+
+    private Configuration withUnsampledFastPath(boolean unsampledFastPath) {
+        this.unsampledFastPath = unsampledFastPath;
+        return this;
+    }
+
 
     public static class SenderConfiguration {
         private Sender sender;
         private String type;
         private String address;
+        private String kafkaTopic;
+        private Boolean kafkaPartitionByTraceId;
+        private Properties kafkaOverrides = new Properties();
 
         SenderConfiguration() {
         }
@@ -264,10 +434,34 @@ public final class Configuration {
             return this;
         }
 
-        Sender getSender() {
+        Configuration.SenderConfiguration withKafkaTopic(String kafkaTopic) {
+            this.kafkaTopic = kafkaTopic;
+            return this;
+        }
+
+        Configuration.SenderConfiguration withKafkaPartitionByTraceId(Boolean kafkaPartitionByTraceId) {
+            this.kafkaPartitionByTraceId = kafkaPartitionByTraceId;
+            return this;
+        }
+
+        /**
+         * Partitioning by trace id is on by default for Kafka11 only: for Kafka08 it replaces the 0.8 producer with
+         * the kafka-clients on the classpath, so it has to be asked for.
+         */
+        boolean isKafkaPartitionedByTraceId(String senderType) {
+            return kafkaPartitionByTraceId != null ? kafkaPartitionByTraceId : "Kafka11".equals(senderType);
+        }
+
+        Configuration.SenderConfiguration withKafkaOverrides(Properties kafkaOverrides) {
+            this.kafkaOverrides = kafkaOverrides;
+            return this;
+        }
+
+        /** @param encoding of the reporter's span encoder, which the Kafka senders are built with */
+        Sender getSender(Encoding encoding) {
             String senderType = Configuration.stringOrDefault(this.type, "URLConnection");
             String senderAddress = Configuration.stringOrDefault(this.address, "http://127.0.0.1:9411/api/v2/spans");
-            Class clazz;
+            Class<?> clazz;
             if (this.sender == null) {
                 try {
                     switch (senderType) {
@@ -275,11 +469,15 @@ public final class Configuration {
                             clazz = Class.forName("zipkin2.reporter.okhttp3.OkHttpSender");
                             break;
                         case "Kafka08":
-                            clazz = Class.forName("zipkin2.reporter.kafka08.KafkaSender");
-                            break;
+                            sender = isKafkaPartitionedByTraceId(senderType)
+                                    ? newTraceAffinityKafkaSender(senderAddress, encoding)
+                                    : newKafkaSender(Class.forName("zipkin2.reporter.kafka08.KafkaSender"), senderAddress, encoding);
+                            return this.sender;
                         case "Kafka11":
-                            clazz = Class.forName("zipkin2.reporter.kafka11.KafkaSender");
-                            break;
+                            sender = isKafkaPartitionedByTraceId(senderType)
+                                    ? newTraceAffinityKafkaSender(senderAddress, encoding)
+                                    : newKafkaSender(kafkaSenderClass(), senderAddress, encoding);
+                            return this.sender;
                         case "RabbitMQ":
                             clazz = Class.forName("zipkin2.reporter.amqp.RabbitMQSender");
                             break;
@@ -299,10 +497,84 @@ public final class Configuration {
             return this.sender;
         }
 
+        /** zipkin-sender-kafka names the class zipkin2.reporter.kafka.KafkaSender, older releases used kafka11. */
+        private static Class<?> kafkaSenderClass() throws ClassNotFoundException {
+            try {
+                return Class.forName("zipkin2.reporter.kafka.KafkaSender");
+            } catch (ClassNotFoundException e) {
+                return Class.forName("zipkin2.reporter.kafka11.KafkaSender");
+            }
+        }
+
+        /** Loaded by name like the other senders, so kafka-clients stays optional. */
+        private Sender newTraceAffinityKafkaSender(String bootstrapServers, Encoding encoding)
+                throws ClassNotFoundException, NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+            return (Sender) Class.forName("io.opentracing.contrib.specialagent.common.sender.TraceAffinityKafkaSender")
+                    .getMethod("create", String.class, String.class, Properties.class, Encoding.class)
+                    .invoke(null, bootstrapServers, kafkaTopic, kafkaOverrides, encoding);
+        }
+
+        /** Builds one of zipkin's Kafka senders with the configured topic, encoding and producer overrides. */
+        private Sender newKafkaSender(Class<?> clazz, String bootstrapServers, Encoding encoding)
+                throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+            Object builder = clazz.getMethod("newBuilder").invoke(null);
+            Class<?> builderClass = builder.getClass();
+            builderClass.getMethod("bootstrapServers", String.class).invoke(builder, bootstrapServers);
+            builderClass.getMethod("encoding", Encoding.class).invoke(builder, encoding);
+            if (kafkaTopic != null) {
+                builderClass.getMethod("topic", String.class).invoke(builder, kafkaTopic);
+            }
+            if (!kafkaOverrides.isEmpty()) {
+                builderClass.getMethod("overrides", Map.class).invoke(builder, kafkaOverrides);
+            }
+            return (Sender) builderClass.getMethod("build").invoke(builder);
+        }
+
         static Configuration.SenderConfiguration fromEnv() {
-            String type = Configuration.getProperty(BraveConstant.BRAVE_SENDER_TYPE);
-            String address = Configuration.getProperty(BraveConstant.BRAVE_SENDER_ADDRESS);
-            return (new Configuration.SenderConfiguration()).withType(type).withAddress(address);
+            return fromEnv(null);
+        }
+
+        static Configuration.SenderConfiguration fromEnv(String destination) {
+            String type = Configuration.getProperty(destinationKey(destination, BraveConstant.BRAVE_SENDER_TYPE));
+            String address = Configuration.getProperty(destinationKey(destination, BraveConstant.BRAVE_SENDER_ADDRESS));
+            String partitionByTraceId = Configuration.getProperty(
+                    destinationKey(destination, BraveConstant.BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID));
+            Properties kafkaOverrides = kafkaOverrides(BraveConstant.BRAVE_SENDER_KAFKA_PREFIX);
+            if (destination != null) {
+                kafkaOverrides.putAll(kafkaOverrides(scopedKey(destination, BraveConstant.BRAVE_SENDER_KAFKA_PREFIX)));
+            }
+            return (new Configuration.SenderConfiguration()).withType(type).withAddress(address)
+                    .withKafkaTopic(Configuration.getProperty(destinationKey(destination, BraveConstant.BRAVE_SENDER_KAFKA_TOPIC)))
+                    .withKafkaPartitionByTraceId(partitionByTraceId != null ? Boolean.valueOf(partitionByTraceId) : null)
+                    .withKafkaOverrides(kafkaOverrides);
+        }
+
+        private final static List<String> KAFKA_SENDER_SETTINGS = Arrays.asList(
+                BraveConstant.BRAVE_SENDER_KAFKA_TOPIC.substring(BraveConstant.BRAVE_SENDER_KAFKA_PREFIX.length()),
+                BraveConstant.BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID.substring(BraveConstant.BRAVE_SENDER_KAFKA_PREFIX.length()));
+
+        /**
+         * Maps every property starting with {@code prefix} to a producer property, e.g. BRAVE_SENDER_KAFKA_LINGER_MS
+         * to linger.ms. System properties win over environment variables, as in {@link Configuration#getProperty}.
+         */
+        static Properties kafkaOverrides(String prefix) {
+            Map<String, String> values = new LinkedHashMap<>(System.getenv());
+            for (String name : System.getProperties().stringPropertyNames()) {
+                values.put(name, System.getProperty(name));
+            }
+            Properties overrides = new Properties();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                String name = entry.getKey();
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                String setting = name.substring(prefix.length());
+                if (setting.isEmpty() || KAFKA_SENDER_SETTINGS.contains(setting)) {
+                    continue;
+                }
+                overrides.setProperty(setting.toLowerCase(Locale.ROOT).replace('_', '.'), entry.getValue());
+            }
+            return overrides;
         }
 
     }
@@ -314,20 +586,52 @@ public final class Configuration {
         private Integer queuedMaxSpans;
         private Integer queuedMaxBytes;
         private String spanBytesEncoder;
+        private String batching;
+        private Long maxExportLatencyNanos;
+        private String batchCompression;
+        private Integer dictionaryBytes;
+        private Integer retrainBatches;
         private Configuration.SenderConfiguration senderConfiguration = new Configuration.SenderConfiguration();
+        /** names the spill file of the single destination, so no destination in BRAVE_DESTINATIONS may take it */
+        final static String DEFAULT_DESTINATION = "default";
+
+        private Map<String, Configuration.ReporterConfiguration> destinations = Collections.emptyMap();
 
         ReporterConfiguration() {
         }
 
         static Configuration.ReporterConfiguration fromEnv() {
-            SenderConfiguration senderConfiguration = SenderConfiguration.fromEnv();
+            Map<String, Configuration.ReporterConfiguration> destinations = new LinkedHashMap<>();
+            String names = getProperty(BraveConstant.BRAVE_DESTINATIONS);
+            if (names != null) {
+                for (String name : names.split(",")) {
+                    name = name.trim();
+                    if (DEFAULT_DESTINATION.equalsIgnoreCase(name)) {
+                        throw new IllegalStateException(String.format("Invalid destination %s, the name is reserved", name));
+                    }
+                    if (!name.isEmpty()) {
+                        destinations.put(name, fromEnv(name));
+                    }
+                }
+            }
+            return fromEnv(null).withDestinations(destinations);
+        }
+
+        /** Destination settings fall back to the top-level ones, see {@link Configuration#destinationKey}. */
+        static Configuration.ReporterConfiguration fromEnv(String destination) {
+            SenderConfiguration senderConfiguration = SenderConfiguration.fromEnv(destination);
             return (new Configuration.ReporterConfiguration())
-                    .withMessageMaxBytes(getPropertyAsInt(BraveConstant.BRAVE_MESSAGE_MAX_BYTES, 5242880))
-                    .withCloseTimeoutNanos(getPropertyAsLong(BraveConstant.BRAVE_CLOSE_TIMEOUT_NANOS, 1L))
-                    .withMessageTimeoutNanos(getPropertyAsLong(BraveConstant.BRAVE_MESSAGE_TIMEOUT_NANOS, 1L))
-                    .withQueuedMaxBytes(getPropertyAsInt(BraveConstant.BRAVE_QUEUE_MAX_BYTES, onePercentOfMemory()))
-                    .withQueuedMaxSpans(getPropertyAsInt(BraveConstant.BRAVE_QUEUE_MAX_SPANS, 10000))
-                    .withSpanBytesEncoder(getProperty(BraveConstant.BRAVE_SPAN_BYTES_ENCODER, "JSON_V1"))
+                    .withMessageMaxBytes(getPropertyAsInt(destinationKey(destination, BraveConstant.BRAVE_MESSAGE_MAX_BYTES), 5242880))
+                    .withCloseTimeoutNanos(getPropertyAsLong(destinationKey(destination, BraveConstant.BRAVE_CLOSE_TIMEOUT_NANOS), 1L))
+                    .withMessageTimeoutNanos(getPropertyAsLong(destinationKey(destination, BraveConstant.BRAVE_MESSAGE_TIMEOUT_NANOS), 1L))
+                    .withQueuedMaxBytes(getPropertyAsInt(destinationKey(destination, BraveConstant.BRAVE_QUEUE_MAX_BYTES), onePercentOfMemory()))
+                    .withQueuedMaxSpans(getPropertyAsInt(destinationKey(destination, BraveConstant.BRAVE_QUEUE_MAX_SPANS), 10000))
+                    .withSpanBytesEncoder(getProperty(destinationKey(destination, BraveConstant.BRAVE_SPAN_BYTES_ENCODER), "JSON_V1"))
+                    .withBatching(getProperty(destinationKey(destination, BraveConstant.BRAVE_BATCHING), "FIXED"))
+                    .withMaxExportLatencyNanos(getPropertyAsLong(destinationKey(destination, BraveConstant.BRAVE_BATCHING_MAX_EXPORT_LATENCY_NANOS), TimeUnit.SECONDS.toNanos(1)))
+                    .withBatchCompression(getProperty(destinationKey(destination, BraveConstant.BRAVE_BATCH_COMPRESSION), "NONE"))
+                    .withDictionaryBytes(getPropertyAsInt(destinationKey(destination, BraveConstant.BRAVE_BATCH_COMPRESSION_DICTIONARY_BYTES), 8192))
+                    .withRetrainBatches(getPropertyAsInt(destinationKey(destination, BraveConstant.BRAVE_BATCH_COMPRESSION_RETRAIN_BATCHES), 1000))
                     .withSender(senderConfiguration);
         }
 
@@ -362,6 +666,31 @@ public final class Configuration {
             return this;
         }
 
+        Configuration.ReporterConfiguration withBatching(String batching) {
+            this.batching = batching;
+            return this;
+        }
+
+        Configuration.ReporterConfiguration withMaxExportLatencyNanos(Long maxExportLatencyNanos) {
+            this.maxExportLatencyNanos = maxExportLatencyNanos;
+            return this;
+        }
+
+        Configuration.ReporterConfiguration withBatchCompression(String batchCompression) {
+            this.batchCompression = batchCompression;
+            return this;
+        }
+
+        Configuration.ReporterConfiguration withDictionaryBytes(Integer dictionaryBytes) {
+            this.dictionaryBytes = dictionaryBytes;
+            return this;
+        }
+
+        Configuration.ReporterConfiguration withRetrainBatches(Integer retrainBatches) {
+            this.retrainBatches = retrainBatches;
+            return this;
+        }
+
         Configuration.ReporterConfiguration withSender(Configuration.SenderConfiguration senderConfiguration) {
             this.senderConfiguration = senderConfiguration;
             return this;
@@ -372,32 +701,335 @@ public final class Configuration {
             return (int) Math.max(Math.min(2147483647L, result), -2147483648L);
         }
 
-        private Reporter<Span> getReporter() {
-            Reporter<Span> reporter = builder(this.senderConfiguration.getSender()).messageMaxBytes(messageMaxBytes)
+        Configuration.ReporterConfiguration withDestinations(Map<String, Configuration.ReporterConfiguration> destinations) {
+            this.destinations = destinations;
+            return this;
+        }
+
+        /** @param drain wraps each destination's sender, or null when BRAVE_SHUTDOWN_MODE is CLOSE */
+        private Reporter<Span> getReporter(ShutdownDrain drain) {
+            if (!this.destinations.isEmpty()) {
+                FanOutReporter.Builder fanOut = FanOutReporter.newBuilder();
+                for (Map.Entry<String, Configuration.ReporterConfiguration> destination : this.destinations.entrySet()) {
+                    Configuration.ReporterConfiguration config = destination.getValue();
+                    SpanBytesEncoder encoder = SpanBytesEncoder.valueOf(config.spanBytesEncoder);
+                    if (config.isAdaptive()) {
+                        fanOut.addDestination(destination.getKey(), encoder, config.adaptiveReporterBuilder(drain, destination.getKey()));
+                    } else {
+                        fanOut.addDestination(destination.getKey(), encoder, config.asyncReporterBuilder(drain, destination.getKey()));
+                    }
+                }
+                return fanOut.build();
+            }
+            if (isAdaptive()) {
+                return adaptiveReporterBuilder(drain, null).build(SpanBytesEncoder.valueOf(spanBytesEncoder));
+            }
+            Reporter<Span> reporter = asyncReporterBuilder(drain, null).build(SpanBytesEncoder.valueOf(spanBytesEncoder));
+            return reporter;
+        }
+
+        boolean isAdaptive() {
+            String mode = stringOrDefault(batching, "FIXED").trim().toUpperCase(Locale.ROOT);
+            if ("ADAPTIVE".equals(mode)) {
+                return true;
+            } else if ("FIXED".equals(mode)) {
+                return false;
+            }
+            throw new IllegalStateException(String.format("Invalid batching %s", batching));
+        }
+
+        /** The flush interval and batch size are tuned online, so {@link #messageTimeoutNanos} is not used. */
+        private AdaptiveBatchingReporter.Builder adaptiveReporterBuilder(ShutdownDrain drain, String destination) {
+            return AdaptiveBatchingReporter.newBuilder(asyncReporterBuilder(drain, destination))
+                    .messageMaxBytes(messageMaxBytes)
+                    .maxExportLatency(maxExportLatencyNanos, TimeUnit.NANOSECONDS)
+                    .closeTimeout(closeTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        boolean isDictionaryCompressed() {
+            String mode = stringOrDefault(batchCompression, "NONE").trim().toUpperCase(Locale.ROOT);
+            if ("DICTIONARY".equals(mode)) {
+                return true;
+            } else if ("NONE".equals(mode)) {
+                return false;
+            }
+            throw new IllegalStateException(String.format("Invalid batch compression %s", batchCompression));
+        }
+
+        /**
+         * Collectors need {@link DictionaryBatchDecoder} to read batches sent with DICTIONARY compression. The drain
+         * wraps outermost, so spilled spans are stored uncompressed and replayed through the compressing sender.
+         */
+        private Sender getSender(ShutdownDrain drain, String destination) {
+            Sender sender = this.senderConfiguration.getSender(SpanBytesEncoder.valueOf(spanBytesEncoder).encoding());
+            if (isDictionaryCompressed()) {
+                DictionaryBatchEncoder encoder = DictionaryBatchEncoder.newBuilder()
+                        .dictionaryBytes(dictionaryBytes)
+                        .retrainBatches(retrainBatches)
+                        .build();
+                sender = DictionaryCompressingSender.create(sender, encoder);
+            }
+            return drain != null ? drain.wrap(sender, destination != null ? destination : DEFAULT_DESTINATION) : sender;
+        }
+
+        private AsyncReporter.Builder asyncReporterBuilder(ShutdownDrain drain, String destination) {
+            return builder(getSender(drain, destination)).messageMaxBytes(messageMaxBytes)
                     .messageTimeout(messageTimeoutNanos, TimeUnit.NANOSECONDS)
                     .closeTimeout(closeTimeoutNanos, TimeUnit.NANOSECONDS)
                     .queuedMaxSpans(queuedMaxSpans)
-                    .queuedMaxBytes(queuedMaxBytes)
-                    .build(SpanBytesEncoder.valueOf(spanBytesEncoder));
-            return reporter;
+                    .queuedMaxBytes(queuedMaxBytes);
+        }
+    }
+
+
+    public static class PropagationConfiguration {
+        private String formats;
+
+        PropagationConfiguration() {
+        }
+
+        static Configuration.PropagationConfiguration fromEnv() {
+            return (new Configuration.PropagationConfiguration()).withFormats(Configuration.getProperty(BraveConstant.BRAVE_PROPAGATION));
+        }
+
+        /**
+         * Formats are a comma separated list of {@link PropagationFormat} names, e.g. "W3C,B3". All of them are
+         * injected; extraction uses the first one present in the carrier.
+         */
+        Propagation.Factory createPropagationFactory() {
+            String propagationFormats = Configuration.stringOrDefault(this.getFormats(), "B3");
+            List<PropagationFormat> formats = new ArrayList<>();
+            for (String name : propagationFormats.split(",")) {
+                name = name.trim().toUpperCase(Locale.ROOT);
+                if (name.isEmpty()) {
+                    continue;
+                }
+                try {
+                    PropagationFormat format = PropagationFormat.valueOf(name);
+                    if (!formats.contains(format)) {
+                        formats.add(format);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException(String.format("Invalid propagation format %s", name));
+                }
+            }
+            return FormatPropagation.newFactory(formats);
+        }
+
+        String getFormats() {
+            return this.formats;
+        }
+
+        Configuration.PropagationConfiguration withFormats(String formats) {
+            this.formats = formats;
+            return this;
+        }
+    }
+
+    public static class ContextConfiguration {
+        private String mode;
+
+        ContextConfiguration() {
+        }
+
+        static Configuration.ContextConfiguration fromEnv() {
+            return (new Configuration.ContextConfiguration()).withMode(getProperty(BraveConstant.BRAVE_CURRENT_CONTEXT));
+        }
+
+        /**
+         * Executors decorated with {@link CurrentTraceContext#executorService} carry the context into tasks, and
+         * tasks submitted outside a trace run with no context.
+         */
+        CurrentTraceContext createCurrentTraceContext() {
+            String name = Configuration.stringOrDefault(mode, "THREAD_LOCAL").trim().toUpperCase(Locale.ROOT);
+            try {
+                return CurrentContextMode.valueOf(name).create();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(String.format("Invalid current context mode %s", mode));
+            }
+        }
+
+        Configuration.ContextConfiguration withMode(String mode) {
+            this.mode = mode;
+            return this;
         }
     }
 
+    public static class ShutdownConfiguration {
+        private String mode;
+        private Long drainTimeoutNanos;
+        private Integer drainConcurrency;
+        private String spillDir;
+
+        ShutdownConfiguration() {
+        }
+
+        static Configuration.ShutdownConfiguration fromEnv() {
+            return (new Configuration.ShutdownConfiguration())
+                    .withMode(getProperty(BraveConstant.BRAVE_SHUTDOWN_MODE))
+                    .withDrainTimeoutNanos(getPropertyAsLong(BraveConstant.BRAVE_SHUTDOWN_DRAIN_TIMEOUT_NANOS, TimeUnit.SECONDS.toNanos(5)))
+                    .withDrainConcurrency(getPropertyAsInt(BraveConstant.BRAVE_SHUTDOWN_DRAIN_CONCURRENCY, 4))
+                    .withSpillDir(getProperty(BraveConstant.BRAVE_SHUTDOWN_SPILL_DIR));
+        }
+
+        boolean isDrain() {
+            String name = stringOrDefault(mode, "CLOSE").trim().toUpperCase(Locale.ROOT);
+            if ("DRAIN".equals(name)) {
+                return true;
+            } else if ("CLOSE".equals(name)) {
+                return false;
+            }
+            throw new IllegalStateException(String.format("Invalid shutdown mode %s", mode));
+        }
+
+        /**
+         * Spill files go to a directory per service under BRAVE_SHUTDOWN_SPILL_DIR, the temporary directory by
+         * default, so a restarted instance replays what the previous one could not send.
+         */
+        ShutdownDrain createDrain(String serviceName) {
+            if (!isDrain()) {
+                return null;
+            }
+            String dir = stringOrDefault(spillDir, System.getProperty("java.io.tmpdir"));
+            String name = stringOrDefault(serviceName, "unknown").replaceAll("[^A-Za-z0-9._-]", "_");
+            return ShutdownDrain.newBuilder()
+                    .timeout(numberOrDefault(drainTimeoutNanos, TimeUnit.SECONDS.toNanos(5)).longValue(), TimeUnit.NANOSECONDS)
+                    .concurrency(numberOrDefault(drainConcurrency, 4).intValue())
+                    .spillDirectory(new File(dir, "brave-spill-" + name))
+                    .build();
+        }
+
+        Configuration.ShutdownConfiguration withMode(String mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        Configuration.ShutdownConfiguration withDrainTimeoutNanos(Long drainTimeoutNanos) {
+            this.drainTimeoutNanos = drainTimeoutNanos;
+            return this;
+        }
+
+        Configuration.ShutdownConfiguration withDrainConcurrency(Integer drainConcurrency) {
+            this.drainConcurrency = drainConcurrency;
+            return this;
+        }
+
+        Configuration.ShutdownConfiguration withSpillDir(String spillDir) {
+            this.spillDir = spillDir;
+            return this;
+        }
+    }
+
+    public static class ProcessorConfiguration {
+        private String dropSpanNames;
+        private String dropSpanTags;
+        private String tagAllow;
+        private String tagDeny;
+        private String tagRedact;
+        private Integer tagMaxValueLength;
+        private Integer tagMaxCount;
+
+        ProcessorConfiguration() {
+        }
+
+        static Configuration.ProcessorConfiguration fromEnv() {
+            return (new Configuration.ProcessorConfiguration())
+                    .withDropSpanNames(getProperty(BraveConstant.BRAVE_PROCESSOR_DROP_SPAN_NAMES))
+                    .withDropSpanTags(getProperty(BraveConstant.BRAVE_PROCESSOR_DROP_SPAN_TAGS))
+                    .withTagAllow(getProperty(BraveConstant.BRAVE_PROCESSOR_TAG_ALLOW))
+                    .withTagDeny(getProperty(BraveConstant.BRAVE_PROCESSOR_TAG_DENY))
+                    .withTagRedact(getProperty(BraveConstant.BRAVE_PROCESSOR_TAG_REDACT))
+                    .withTagMaxValueLength(getPropertyAsInt(BraveConstant.BRAVE_PROCESSOR_TAG_MAX_VALUE_LENGTH, 0))
+                    .withTagMaxCount(getPropertyAsInt(BraveConstant.BRAVE_PROCESSOR_TAG_MAX_COUNT, 0));
+        }
+
+        /** Dropping runs first so that spans which are thrown away never pay for tag rewriting. */
+        List<FinishedSpanHandler> createHandlers() {
+            List<FinishedSpanHandler> handlers = new ArrayList<>();
+            DropSpanHandler drop = DropSpanHandler.create(dropSpanNames, dropSpanTags);
+            if (drop != null) {
+                handlers.add(drop);
+            }
+            TagFilterHandler tagFilter = TagFilterHandler.newBuilder()
+                    .allow(tagAllow)
+                    .deny(tagDeny)
+                    .redact(tagRedact)
+                    .maxValueLength(tagMaxValueLength != null ? tagMaxValueLength : 0)
+                    .maxCount(tagMaxCount != null ? tagMaxCount : 0)
+                    .build();
+            if (tagFilter != null) {
+                handlers.add(tagFilter);
+            }
+            return handlers;
+        }
+
+        Configuration.ProcessorConfiguration withDropSpanNames(String dropSpanNames) {
+            this.dropSpanNames = dropSpanNames;
+            return this;
+        }
+
+        Configuration.ProcessorConfiguration withDropSpanTags(String dropSpanTags) {
+            this.dropSpanTags = dropSpanTags;
+            return this;
+        }
+
+        Configuration.ProcessorConfiguration withTagAllow(String tagAllow) {
+            this.tagAllow = tagAllow;
+            return this;
+        }
+
+        Configuration.ProcessorConfiguration withTagDeny(String tagDeny) {
+            this.tagDeny = tagDeny;
+            return this;
+        }
+
+        Configuration.ProcessorConfiguration withTagRedact(String tagRedact) {
+            this.tagRedact = tagRedact;
+            return this;
+        }
+
+        Configuration.ProcessorConfiguration withTagMaxValueLength(Integer tagMaxValueLength) {
+            this.tagMaxValueLength = tagMaxValueLength;
+            return this;
+        }
+
+        Configuration.ProcessorConfiguration withTagMaxCount(Integer tagMaxCount) {
+            this.tagMaxCount = tagMaxCount;
+            return this;
+        }
+    }
 
     public static class SamplerConfiguration {
         private String type;
         private Number param;
+        private String serviceName;
+        private String remoteUrl;
+        private String remoteFallbackType;
+        private Long remoteRefreshNanos;
+        private String remoteCacheFile;
 
         SamplerConfiguration() {
         }
 
         static Configuration.SamplerConfiguration fromEnv() {
-            return (new Configuration.SamplerConfiguration()).withType(Configuration.getProperty(BraveConstant.BRAVE_SAMPLER_TYPE)).withParam(Configuration.getPropertyAsNum(BraveConstant.BRAVE_SAMPLER_PARAM));
+            return (new Configuration.SamplerConfiguration()).withType(Configuration.getProperty(BraveConstant.BRAVE_SAMPLER_TYPE)).withParam(Configuration.getPropertyAsNum(BraveConstant.BRAVE_SAMPLER_PARAM))
+                    .withServiceName(getProperty(BraveConstant.BRAVE_SERVICE_NAME))
+                    .withRemoteUrl(getProperty(BraveConstant.BRAVE_SAMPLER_REMOTE_URL))
+                    .withRemoteFallbackType(getProperty(BraveConstant.BRAVE_SAMPLER_REMOTE_FALLBACK_TYPE))
+                    .withRemoteRefreshNanos(getPropertyAsLong(BraveConstant.BRAVE_SAMPLER_REMOTE_REFRESH_NANOS, TimeUnit.MINUTES.toNanos(1)))
+                    .withRemoteCacheFile(getProperty(BraveConstant.BRAVE_SAMPLER_REMOTE_CACHE_FILE));
         }
 
         Sampler createSampler() {
             String samplerType = Configuration.stringOrDefault(this.getType(), "boundary");
             Number samplerParam = Configuration.numberOrDefault(this.getParam(), 0.001f);
+            if ("remote".equals(samplerType)) {
+                return createRemoteSampler(createSampler(Configuration.stringOrDefault(remoteFallbackType, "boundary"), samplerParam));
+            }
+            return createSampler(samplerType, samplerParam);
+        }
+
+        private static Sampler createSampler(String samplerType, Number samplerParam) {
             switch (samplerType) {
                 case "boundary":
                     return BoundarySampler.create(samplerParam.floatValue());
@@ -410,6 +1042,29 @@ public final class Configuration {
             }
         }
 
+        /**
+         * The cache defaults to one file per service in java.io.tmpdir, so it survives a restart of the process. The
+         * service name is reduced to characters that are safe in a file name.
+         */
+        private RemoteSampler createRemoteSampler(Sampler fallback) {
+            if (remoteUrl == null || remoteUrl.isEmpty()) {
+                throw new IllegalStateException(String.format("Invalid remote sampler url %s", remoteUrl));
+            }
+            String cacheFile = Configuration.stringOrDefault(remoteCacheFile, new File(System.getProperty("java.io.tmpdir"),
+                    "brave-sampling-" + Configuration.stringOrDefault(serviceName, "unknown").replaceAll("[^A-Za-z0-9._-]", "_")
+                            + ".properties").getPath());
+            try {
+                return RemoteSampler.newBuilder(remoteUrl)
+                        .serviceName(serviceName)
+                        .fallback(fallback)
+                        .refreshInterval(remoteRefreshNanos != null ? remoteRefreshNanos : TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS)
+                        .cacheFile(new File(cacheFile))
+                        .build();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(String.format("Invalid remote sampler, %s", e.getMessage()), e);
+            }
+        }
+
         String getType() {
             return this.type;
         }
@@ -427,6 +1082,31 @@ public final class Configuration {
             this.param = param;
             return this;
         }
+
+        Configuration.SamplerConfiguration withServiceName(String serviceName) {
+            this.serviceName = serviceName;
+            return this;
+        }
+
+        Configuration.SamplerConfiguration withRemoteUrl(String remoteUrl) {
+            this.remoteUrl = remoteUrl;
+            return this;
+        }
+
+        Configuration.SamplerConfiguration withRemoteFallbackType(String remoteFallbackType) {
+            this.remoteFallbackType = remoteFallbackType;
+            return this;
+        }
+
+        Configuration.SamplerConfiguration withRemoteRefreshNanos(Long remoteRefreshNanos) {
+            this.remoteRefreshNanos = remoteRefreshNanos;
+            return this;
+        }
+
+        Configuration.SamplerConfiguration withRemoteCacheFile(String remoteCacheFile) {
+            this.remoteCacheFile = remoteCacheFile;
+            return this;
+        }
     }
 
 }
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.codec;
+
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Collector side of {@link DictionaryBatchEncoder}: turns a received message back into the sender's list
+ * encoding, e.g. for a local stand-in collector.
+ * <p>
+ * Dictionaries arriving with a frame are checked against their id and remembered, least recently used first out.
+ * A frame referencing a dictionary not seen yet fails with {@link IllegalArgumentException}; the encoder resends
+ * it periodically, so such batches are lost only until then.
+ *
+ * @author zhangbin
+ */
+public final class DictionaryBatchDecoder {
+
+    final static int DEFAULT_MAX_DICTIONARIES = 16;
+
+    public static DictionaryBatchDecoder create() {
+        return new DictionaryBatchDecoder(DEFAULT_MAX_DICTIONARIES);
+    }
+
+    /** True when {@code message} holds a frame, as opposed to a plain list of spans. */
+    public static boolean isFrame(byte[] message) {
+        return DictionaryFrame.offset(message) != -1;
+    }
+
+    private final Map<Integer, byte[]> dictionaries;
+
+    private DictionaryBatchDecoder(final int maxDictionaries) {
+        this.dictionaries = new LinkedHashMap<Integer, byte[]>(maxDictionaries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > maxDictionaries;
+            }
+        };
+    }
+
+    /** Decodes the spans of a message, {@code decoder} matching the sender's encoding. */
+    public List<Span> decodeSpans(byte[] message, SpanBytesDecoder decoder) {
+        return decoder.decodeList(decode(message));
+    }
+
+    /** Returns the uncompressed batch, as the sender would have sent it without compression. */
+    public byte[] decode(byte[] message) {
+        int offset = DictionaryFrame.offset(message);
+        if (offset == -1) {
+            throw new IllegalArgumentException("Not a dictionary compressed batch");
+        }
+        if (message[offset + 2] != DictionaryFrame.VERSION) {
+            throw new IllegalArgumentException(String.format("Unsupported frame version %d", message[offset + 2]));
+        }
+        int flags = message[offset + 3];
+        int id = DictionaryFrame.readInt(message, offset + 4);
+        offset += DictionaryFrame.HEADER_BYTES;
+
+        byte[] dictionary = null;
+        if ((flags & DictionaryFrame.FLAG_DICTIONARY_INCLUDED) != 0) {
+            int length = readLength(message, offset, DictionaryFrame.MAX_DICTIONARY_BYTES);
+            dictionary = new byte[length];
+            System.arraycopy(message, offset + 4, dictionary, 0, length);
+            if (DictionaryFrame.dictionaryId(dictionary) != id) {
+                throw new IllegalArgumentException(String.format("Corrupt dictionary %08x", id));
+            }
+            synchronized (dictionaries) {
+                dictionaries.put(id, dictionary);
+            }
+            offset += 4 + length;
+        } else if (id != DictionaryFrame.NO_DICTIONARY) {
+            synchronized (dictionaries) {
+                dictionary = dictionaries.get(id);
+            }
+            if (dictionary == null) {
+                throw new IllegalArgumentException(String.format("Unknown dictionary %08x", id));
+            }
+        }
+
+        if (message.length < offset + DictionaryFrame.LENGTHS_BYTES) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        int batchLength = DictionaryFrame.readInt(message, offset);
+        if (batchLength < 0) {
+            throw new IllegalArgumentException("Corrupt batch length " + batchLength);
+        }
+        int deflatedLength = readLength(message, offset + 4, Integer.MAX_VALUE);
+        offset += DictionaryFrame.LENGTHS_BYTES;
+        return inflate(message, offset, deflatedLength, dictionary, batchLength);
+    }
+
+    /** Reads a length at {@code offset} and checks that many bytes follow it. */
+    private static int readLength(byte[] message, int offset, int max) {
+        if (message.length < offset + 4) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        int length = DictionaryFrame.readInt(message, offset);
+        if (length < 0 || length > max || length > message.length - offset - 4) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return length;
+    }
+
+    private static byte[] inflate(byte[] message, int offset, int length, byte[] dictionary, int batchLength) {
+        Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(message, offset, length);
+            byte[] batch = new byte[batchLength];
+            int inflated = 0;
+            while (inflated < batchLength && !inflater.finished()) {
+                int n = inflater.inflate(batch, inflated, batchLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != batchLength) {
+                throw new IllegalArgumentException(
+                        String.format("Corrupt frame, inflated %d of %d bytes", inflated, batchLength));
+            }
+            return batch;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.codec;
+
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses batches of encoded spans with deflate and a preset dictionary trained from recent traffic.
+ * <p>
+ * A few spans of every batch are kept in a ring. Once enough are sampled, and again every
+ * {@link Builder#retrainBatches}, a dictionary is built from the distinct samples with the newest last, where
+ * deflate references are cheapest. Spans of one service mostly share names, tags and endpoints, so the first
+ * batch after a flush compresses about as well as a long stream would.
+ * <p>
+ * Dictionaries are identified by their CRC32. Frames with a new dictionary carry it until the sender reports one
+ * of them {@link #delivered(byte[]) delivered}, and so does every {@link Builder#resendBatches}th one after, so a
+ * collector that restarted or missed it catches up; the others only carry the id. See
+ * {@link DictionaryBatchDecoder} for the receiving side.
+ *
+ * @author zhangbin
+ */
+public final class DictionaryBatchEncoder {
+
+    final static int SAMPLES_PER_BATCH = 8;
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        int dictionaryBytes = 8 * 1024;
+        int sampleSpans = 512;
+        int minSampleSpans = 64;
+        int retrainBatches = 1000;
+        int resendBatches = 100;
+        int level = Deflater.DEFAULT_COMPRESSION;
+
+        Builder() {
+        }
+
+        /**
+         * Upper bound of the dictionary, at most the 32KiB deflate window. Defaults to 8KiB: frames carrying the
+         * dictionary cost more than a larger one saves on the others.
+         */
+        public Builder dictionaryBytes(int dictionaryBytes) {
+            if (dictionaryBytes <= 0 || dictionaryBytes > DictionaryFrame.MAX_DICTIONARY_BYTES) {
+                throw new IllegalArgumentException("dictionaryBytes must be in (0, 32768]: " + dictionaryBytes);
+            }
+            this.dictionaryBytes = dictionaryBytes;
+            return this;
+        }
+
+        /** Number of recent spans kept to train from, and how many are needed before the first dictionary. */
+        public Builder sampleSpans(int sampleSpans, int minSampleSpans) {
+            if (minSampleSpans <= 0 || sampleSpans < minSampleSpans) {
+                throw new IllegalArgumentException(
+                        "sampleSpans must be >= minSampleSpans > 0: " + sampleSpans + ", " + minSampleSpans);
+            }
+            this.sampleSpans = sampleSpans;
+            this.minSampleSpans = minSampleSpans;
+            return this;
+        }
+
+        /** Batches between two trainings. Defaults to 1000. */
+        public Builder retrainBatches(int retrainBatches) {
+            if (retrainBatches <= 0) {
+                throw new IllegalArgumentException("retrainBatches <= 0: " + retrainBatches);
+            }
+            this.retrainBatches = retrainBatches;
+            return this;
+        }
+
+        /** The dictionary goes along with every n-th frame using it. Defaults to 100. */
+        public Builder resendBatches(int resendBatches) {
+            if (resendBatches <= 0) {
+                throw new IllegalArgumentException("resendBatches <= 0: " + resendBatches);
+            }
+            this.resendBatches = resendBatches;
+            return this;
+        }
+
+        /** Deflate level, see {@link Deflater#setLevel}. */
+        public Builder level(int level) {
+            if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid level: " + level);
+            }
+            this.level = level;
+            return this;
+        }
+
+        public DictionaryBatchEncoder build() {
+            return new DictionaryBatchEncoder(this);
+        }
+    }
+
+    final static class Dictionary {
+        final int id;
+        final byte[] bytes;
+        final AtomicLong frames = new AtomicLong();
+        volatile boolean delivered;
+
+        Dictionary(int id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int dictionaryBytes;
+    private final int minSampleSpans;
+    private final int retrainBatches;
+    private final int resendBatches;
+    private final int level;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    // guarded by samples
+    private final byte[][] samples;
+    private long sampled;
+    private long batches;
+    private volatile Dictionary dictionary;
+
+    private DictionaryBatchEncoder(Builder builder) {
+        this.dictionaryBytes = builder.dictionaryBytes;
+        this.minSampleSpans = builder.minSampleSpans;
+        this.retrainBatches = builder.retrainBatches;
+        this.resendBatches = builder.resendBatches;
+        this.level = builder.level;
+        this.samples = new byte[builder.sampleSpans][];
+    }
+
+    /** Id of the dictionary new frames are compressed with, 0 until the first one is trained. */
+    public int dictionaryId() {
+        Dictionary current = dictionary;
+        return current == null ? DictionaryFrame.NO_DICTIONARY : current.id;
+    }
+
+    /** Encodes {@code encodedSpans} as a list in {@code encoding} and compresses that into a frame. */
+    public byte[] encode(Encoding encoding, List<byte[]> encodedSpans) {
+        Dictionary current = sample(encodedSpans);
+        byte[] batch = BytesMessageEncoder.forEncoding(encoding).encode(encodedSpans);
+        boolean include = current != null
+                && (current.frames.getAndIncrement() % resendBatches == 0 || !current.delivered);
+
+        int headerBytes = DictionaryFrame.HEADER_BYTES + (include ? 4 + current.bytes.length : 0)
+                + DictionaryFrame.LENGTHS_BYTES;
+        byte[] frame = new byte[headerBytes + batch.length / 2 + 64];
+        int deflatedBytes;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            if (current != null) {
+                deflater.setDictionary(current.bytes);
+            }
+            deflater.setInput(batch);
+            deflater.finish();
+            int end = headerBytes;
+            while (!deflater.finished()) {
+                if (end == frame.length) {
+                    frame = Arrays.copyOf(frame, frame.length * 2);
+                }
+                end += deflater.deflate(frame, end, frame.length - end);
+            }
+            deflatedBytes = end - headerBytes;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+
+        frame[0] = DictionaryFrame.MAGIC_0;
+        frame[1] = DictionaryFrame.MAGIC_1;
+        frame[2] = DictionaryFrame.VERSION;
+        frame[3] = (byte) (include ? DictionaryFrame.FLAG_DICTIONARY_INCLUDED : 0);
+        DictionaryFrame.writeInt(frame, 4, current == null ? DictionaryFrame.NO_DICTIONARY : current.id);
+        int offset = DictionaryFrame.HEADER_BYTES;
+        if (include) {
+            DictionaryFrame.writeInt(frame, offset, current.bytes.length);
+            System.arraycopy(current.bytes, 0, frame, offset + 4, current.bytes.length);
+            offset += 4 + current.bytes.length;
+        }
+        DictionaryFrame.writeInt(frame, offset, batch.length);
+        DictionaryFrame.writeInt(frame, offset + 4, deflatedBytes);
+        return Arrays.copyOf(frame, headerBytes + deflatedBytes);
+    }
+
+    /**
+     * Called by the sender once {@code frame} was sent; if it carried the current dictionary, later frames stop
+     * carrying it until the next resend.
+     */
+    public void delivered(byte[] frame) {
+        Dictionary current = dictionary;
+        if (current != null && !current.delivered && frame.length >= DictionaryFrame.HEADER_BYTES
+                && (frame[3] & DictionaryFrame.FLAG_DICTIONARY_INCLUDED) != 0
+                && DictionaryFrame.readInt(frame, 4) == current.id) {
+            current.delivered = true;
+        }
+    }
+
+    /** Upper bound of what a frame adds to the batch besides its compressed spans, the dictionary included. */
+    public int frameOverheadBytes() {
+        return DictionaryFrame.HEADER_BYTES + 4 + dictionaryBytes + DictionaryFrame.LENGTHS_BYTES;
+    }
+
+    /** Releases the native deflate buffers. */
+    public void close() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    /** Keeps a few evenly spread spans of the batch and retrains when due; returns the dictionary to use. */
+    private Dictionary sample(List<byte[]> encodedSpans) {
+        synchronized (samples) {
+            int size = encodedSpans.size();
+            int take = Math.min(size, SAMPLES_PER_BATCH);
+            for (int i = 0; i < take; i++) {
+                samples[(int) (sampled++ % samples.length)] = encodedSpans.get(i * size / take);
+            }
+            batches++;
+            Dictionary current = dictionary;
+            boolean due = current == null ? sampled >= minSampleSpans : batches % retrainBatches == 0;
+            if (due) {
+                Dictionary trained = train();
+                if (trained != null && (current == null || trained.id != current.id)) {
+                    dictionary = current = trained;
+                }
+            }
+            return current;
+        }
+    }
+
+    /** Fills the dictionary with the most recent distinct samples, the newest last. */
+    private Dictionary train() {
+        int filled = (int) Math.min(sampled, samples.length);
+        List<byte[]> chosen = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        int total = 0;
+        for (int i = 0; i < filled && total < dictionaryBytes; i++) {
+            byte[] sample = samples[(int) ((sampled - 1 - i) % samples.length)];
+            if (sample.length > dictionaryBytes - total || !seen.add(Arrays.hashCode(sample))) {
+                continue;
+            }
+            chosen.add(sample);
+            total += sample.length;
+        }
+        if (total == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[total];
+        int offset = total;
+        for (byte[] sample : chosen) {
+            offset -= sample.length;
+            System.arraycopy(sample, 0, bytes, offset, sample.length);
+        }
+        return new Dictionary(DictionaryFrame.dictionaryId(bytes), bytes);
+    }
+}
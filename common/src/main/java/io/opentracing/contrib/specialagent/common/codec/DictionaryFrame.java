@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.codec;
+
+import java.util.zip.CRC32;
+
+/**
+ * Layout of a dictionary compressed batch, all integers big endian:
+ * <pre>
+ * 'Z' 'D' version(1) flags(1) dictionaryId(4)
+ * [dictionaryLength(4) dictionary]     when {@link #FLAG_DICTIONARY_INCLUDED} is set
+ * batchLength(4) deflatedLength(4) deflated
+ * </pre>
+ * The batch is the list encoding of the sender, e.g. a JSON array, compressed as raw deflate with the dictionary
+ * preset. A dictionary id of {@link #NO_DICTIONARY} means plain deflate, which is used until one is trained.
+ * <p>
+ * Senders wrap the frame in their own list encoding as if it were a single span, so {@link #offset} also looks
+ * behind a JSON {@code [} and a thrift list header.
+ *
+ * @author zhangbin
+ */
+final class DictionaryFrame {
+
+    final static byte MAGIC_0 = 'Z';
+    final static byte MAGIC_1 = 'D';
+    final static byte VERSION = 1;
+    final static int FLAG_DICTIONARY_INCLUDED = 1;
+    final static int NO_DICTIONARY = 0;
+    /** Deflate only keeps a 32KiB window, a longer dictionary is never referenced. */
+    final static int MAX_DICTIONARY_BYTES = 32 * 1024;
+
+    final static int HEADER_BYTES = 8;
+    final static int LENGTHS_BYTES = 8;
+    final static int THRIFT_LIST_HEADER_BYTES = 5;
+
+    private DictionaryFrame() {
+    }
+
+    /** Returns where the frame starts in {@code message}, or -1 when it does not hold one. */
+    static int offset(byte[] message) {
+        if (isFrameAt(message, 0)) {
+            return 0;
+        } else if (message.length > 0 && message[0] == '[' && isFrameAt(message, 1)) {
+            return 1;
+        } else if (isFrameAt(message, THRIFT_LIST_HEADER_BYTES)) {
+            return THRIFT_LIST_HEADER_BYTES;
+        }
+        return -1;
+    }
+
+    private static boolean isFrameAt(byte[] message, int offset) {
+        return message.length >= offset + HEADER_BYTES + LENGTHS_BYTES
+                && message[offset] == MAGIC_0 && message[offset + 1] == MAGIC_1;
+    }
+
+    /** The CRC32 of the dictionary, never {@link #NO_DICTIONARY}. */
+    static int dictionaryId(byte[] dictionary) {
+        CRC32 crc = new CRC32();
+        crc.update(dictionary, 0, dictionary.length);
+        int id = (int) crc.getValue();
+        return id == NO_DICTIONARY ? 1 : id;
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | buffer[offset + 3] & 0xff;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.context;
+
+import brave.propagation.CurrentTraceContext;
+
+/**
+ * How the current trace context is kept per thread.
+ *
+ * @author zhangbin
+ */
+public enum CurrentContextMode {
+
+    /** Brave's default: a ThreadLocal that is not inherited by child threads. */
+    THREAD_LOCAL {
+        @Override
+        public CurrentTraceContext create() {
+            return CurrentTraceContext.Default.create();
+        }
+    },
+
+    /** Copies the context into threads created inside a scope; costly with many short-lived threads. */
+    INHERITABLE {
+        @Override
+        public CurrentTraceContext create() {
+            return CurrentTraceContext.Default.inheritable();
+        }
+    },
+
+    /** See {@link LightweightCurrentTraceContext}. */
+    LIGHTWEIGHT {
+        @Override
+        public CurrentTraceContext create() {
+            return LightweightCurrentTraceContext.create();
+        }
+    },
+
+    /** {@link #LIGHTWEIGHT} when the JVM has virtual threads (JDK 21+), {@link #THREAD_LOCAL} otherwise. */
+    AUTO {
+        @Override
+        public CurrentTraceContext create() {
+            return (VIRTUAL_THREADS ? LIGHTWEIGHT : THREAD_LOCAL).create();
+        }
+    };
+
+    final static boolean VIRTUAL_THREADS = hasVirtualThreads();
+
+    public abstract CurrentTraceContext create();
+
+    /** Thread.isVirtual() appeared with virtual threads; looked up reflectively as this is built for Java 8. */
+    static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("isVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
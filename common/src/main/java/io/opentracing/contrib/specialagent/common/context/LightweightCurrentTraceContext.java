@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.context;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+
+/**
+ * A {@link CurrentTraceContext} for many short-lived threads, such as one virtual thread per task.
+ * <p>
+ * Like Brave's default it keeps the context in a plain {@link ThreadLocal}, which neither pins a virtual thread
+ * to its carrier nor is copied into child threads. It differs in two ways:
+ * <ul>
+ * <li>each thread gets one mutable slot, the first time it opens a scope, and switching scopes only writes that
+ * slot, so the thread's ThreadLocal map is not touched again until the thread dies with its slot;</li>
+ * <li>scopes opened on a thread without a context, the usual case at the start of a task, share one scope object
+ * instead of allocating one, as do scopes that do not change the context.</li>
+ * </ul>
+ * <p>
+ * Tasks wrapped outside a trace are still wrapped: they run with no context even on a pool thread that is inside
+ * a scope, and on a thread without a slot that costs no more than a {@code ThreadLocal} read.
+ *
+ * @author zhangbin
+ */
+public final class LightweightCurrentTraceContext extends CurrentTraceContext {
+
+    // shared by every instance, as in Brave's default, so all tracers in the JVM see one current context; threads
+    // that only read it, or wrap tasks outside a trace, never get a slot
+    private final static ThreadLocal<Slot> SLOT = new ThreadLocal<>();
+
+    private final static Scope CLEAR = new Scope() {
+        @Override
+        public void close() {
+            Slot slot = SLOT.get();
+            if (slot != null) {
+                slot.context = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ClearScope";
+        }
+    };
+
+    public static CurrentTraceContext create() {
+        return new LightweightCurrentTraceContext();
+    }
+
+    private LightweightCurrentTraceContext() {
+    }
+
+    @Override
+    public TraceContext get() {
+        Slot slot = SLOT.get();
+        return slot != null ? slot.context : null;
+    }
+
+    @Override
+    public Scope newScope(TraceContext context) {
+        Slot slot = SLOT.get();
+        if (slot == null) {
+            if (context == null) {
+                return Scope.NOOP;
+            }
+            SLOT.set(slot = new Slot());
+        }
+        TraceContext previous = slot.context;
+        if (previous == context) {
+            return Scope.NOOP;
+        }
+        slot.context = context;
+        return previous == null ? CLEAR : new RestoreScope(slot, previous);
+    }
+
+    /** Only read and written by its own thread. */
+    private final static class Slot {
+        TraceContext context;
+    }
+
+    private final static class RestoreScope implements Scope {
+        private final Slot slot;
+        private final TraceContext previous;
+
+        RestoreScope(Slot slot, TraceContext previous) {
+            this.slot = slot;
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            slot.context = previous;
+        }
+
+        @Override
+        public String toString() {
+            return "RestoreScope(" + previous + ")";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LightweightCurrentTraceContext";
+    }
+}
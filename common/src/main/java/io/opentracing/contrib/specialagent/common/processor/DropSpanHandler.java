@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.processor;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops spans by name or by tag value before they are converted, encoded and queued.
+ * <p>
+ * Returning false from {@link #handle} stops the handler chain, so the span never reaches the reporter.
+ *
+ * @author zhangbin
+ */
+public final class DropSpanHandler extends FinishedSpanHandler {
+
+    /**
+     * @param names globs matched against the span name, e.g. "GET /health,*metrics"
+     * @param tags  comma separated {@code key=glob} rules, e.g. "http.path=/health,component=jdbc*"
+     * @return the handler, or null if neither option drops anything
+     */
+    public static DropSpanHandler create(String names, String tags) {
+        GlobMatcher nameMatcher = GlobMatcher.compile(names);
+        Map<String, StringBuilder> valueGlobs = new LinkedHashMap<>();
+        if (tags != null) {
+            for (String rule : tags.split(",")) {
+                int equals = rule.indexOf('=');
+                if (equals <= 0) {
+                    continue;
+                }
+                String key = rule.substring(0, equals).trim();
+                StringBuilder globs = valueGlobs.get(key);
+                if (globs == null) {
+                    valueGlobs.put(key, globs = new StringBuilder());
+                } else {
+                    globs.append(',');
+                }
+                globs.append(rule.substring(equals + 1).trim());
+            }
+        }
+        String[] tagKeys = valueGlobs.keySet().toArray(new String[0]);
+        GlobMatcher[] tagMatchers = new GlobMatcher[tagKeys.length];
+        for (int i = 0; i < tagKeys.length; i++) {
+            tagMatchers[i] = GlobMatcher.compile(valueGlobs.get(tagKeys[i]).toString());
+        }
+        if (nameMatcher == null && tagKeys.length == 0) {
+            return null;
+        }
+        return new DropSpanHandler(nameMatcher, tagKeys, tagMatchers);
+    }
+
+    private final GlobMatcher nameMatcher;
+    private final String[] tagKeys;
+    private final GlobMatcher[] tagMatchers;
+
+    private DropSpanHandler(GlobMatcher nameMatcher, String[] tagKeys, GlobMatcher[] tagMatchers) {
+        this.nameMatcher = nameMatcher;
+        this.tagKeys = tagKeys;
+        this.tagMatchers = tagMatchers;
+    }
+
+    @Override
+    public boolean handle(TraceContext context, MutableSpan span) {
+        if (nameMatcher != null && nameMatcher.matches(span.name())) {
+            return false;
+        }
+        for (int i = 0; i < tagKeys.length; i++) {
+            GlobMatcher matcher = tagMatchers[i];
+            if (matcher != null && matcher.matches(span.tag(tagKeys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DropSpanHandler";
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.processor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches Strings against a comma separated list of globs where {@code *} matches any run of characters.
+ * <p>
+ * Patterns are compiled once: plain names go into a hash set, {@code prefix*}, {@code *suffix} and
+ * {@code prefix*suffix} become {@link String#startsWith}/{@link String#endsWith} checks, and only globs with
+ * more than one {@code *} fall back to a precompiled regular expression.
+ *
+ * @author zhangbin
+ */
+public final class GlobMatcher {
+
+    /** Returns a matcher for {@code globs}, or null when there is nothing to match. */
+    public static GlobMatcher compile(String globs) {
+        if (globs == null) {
+            return null;
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String glob : globs.split(",")) {
+            glob = glob.trim();
+            if (!glob.isEmpty()) {
+                patterns.add(glob);
+            }
+        }
+        return patterns.isEmpty() ? null : new GlobMatcher(patterns);
+    }
+
+    private final boolean matchAll;
+    private final Set<String> exact = new HashSet<>();
+    private final String[] prefixes;
+    private final String[] suffixes;
+    private final Pattern[] regexes;
+
+    private GlobMatcher(List<String> patterns) {
+        boolean matchAll = false;
+        List<String> prefixes = new ArrayList<>();
+        List<String> suffixes = new ArrayList<>();
+        List<Pattern> regexes = new ArrayList<>();
+        for (String pattern : patterns) {
+            int first = pattern.indexOf('*');
+            int last = pattern.lastIndexOf('*');
+            if (first == -1) {
+                exact.add(pattern);
+            } else if (pattern.equals("*")) {
+                matchAll = true;
+            } else if (first == last) {
+                // prefixes and suffixes are kept pairwise so "prefix*suffix" needs both to hold
+                prefixes.add(pattern.substring(0, first));
+                suffixes.add(pattern.substring(first + 1));
+            } else {
+                StringBuilder regex = new StringBuilder();
+                for (String part : pattern.split("\\*", -1)) {
+                    if (regex.length() > 0) {
+                        regex.append(".*");
+                    }
+                    regex.append(Pattern.quote(part));
+                }
+                regexes.add(Pattern.compile(regex.toString()));
+            }
+        }
+        this.matchAll = matchAll;
+        this.prefixes = prefixes.toArray(new String[0]);
+        this.suffixes = suffixes.toArray(new String[0]);
+        this.regexes = regexes.toArray(new Pattern[0]);
+    }
+
+    public boolean matches(String value) {
+        if (value == null) {
+            return false;
+        }
+        if (matchAll || exact.contains(value)) {
+            return true;
+        }
+        for (int i = 0; i < prefixes.length; i++) {
+            if (value.length() >= prefixes[i].length() + suffixes[i].length()
+                    && value.startsWith(prefixes[i]) && value.endsWith(suffixes[i])) {
+                return true;
+            }
+        }
+        for (Pattern regex : regexes) {
+            if (regex.matcher(value).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.processor;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+
+/**
+ * Rewrites span tags in a single pass: removes tags outside the allow list or inside the deny list, redacts
+ * sensitive values, truncates long values and finally keeps at most a fixed number of tags.
+ *
+ * @author zhangbin
+ */
+public final class TagFilterHandler extends FinishedSpanHandler {
+
+    final static String REDACTED = "[redacted]";
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private GlobMatcher allow;
+        private GlobMatcher deny;
+        private GlobMatcher redact;
+        private int maxValueLength;
+        private int maxCount;
+
+        Builder() {
+        }
+
+        /** Globs of tag keys to keep; when set, every other tag is removed. */
+        public Builder allow(String globs) {
+            this.allow = GlobMatcher.compile(globs);
+            return this;
+        }
+
+        /** Globs of tag keys to remove. */
+        public Builder deny(String globs) {
+            this.deny = GlobMatcher.compile(globs);
+            return this;
+        }
+
+        /** Globs of tag keys whose values are replaced with {@value #REDACTED}. */
+        public Builder redact(String globs) {
+            this.redact = GlobMatcher.compile(globs);
+            return this;
+        }
+
+        /** Longer values are cut to this many characters. Zero or less disables truncation. */
+        public Builder maxValueLength(int maxValueLength) {
+            this.maxValueLength = maxValueLength;
+            return this;
+        }
+
+        /** Tags after the first {@code maxCount} are removed. Zero or less disables the cap. */
+        public Builder maxCount(int maxCount) {
+            this.maxCount = maxCount;
+            return this;
+        }
+
+        /** Returns the handler, or null if no option would change a span. */
+        public TagFilterHandler build() {
+            if (allow == null && deny == null && redact == null && maxValueLength <= 0 && maxCount <= 0) {
+                return null;
+            }
+            return new TagFilterHandler(this);
+        }
+    }
+
+    private final GlobMatcher allow;
+    private final GlobMatcher deny;
+    private final GlobMatcher redact;
+    private final int maxValueLength;
+    private final int maxCount;
+    private final MutableSpan.TagUpdater updater = new MutableSpan.TagUpdater() {
+        @Override
+        public String update(String key, String value) {
+            return TagFilterHandler.this.update(key, value);
+        }
+    };
+    // the tag cap counts per span; handlers run on the finishing thread, so one updater per thread will do
+    private final ThreadLocal<CountingUpdater> countingUpdaters = new ThreadLocal<CountingUpdater>() {
+        @Override
+        protected CountingUpdater initialValue() {
+            return new CountingUpdater();
+        }
+    };
+
+    private TagFilterHandler(Builder builder) {
+        this.allow = builder.allow;
+        this.deny = builder.deny;
+        this.redact = builder.redact;
+        this.maxValueLength = builder.maxValueLength;
+        this.maxCount = builder.maxCount;
+    }
+
+    @Override
+    public boolean handle(TraceContext context, MutableSpan span) {
+        if (maxCount > 0) {
+            CountingUpdater counting = countingUpdaters.get();
+            counting.count = 0;
+            span.forEachTag(counting);
+        } else {
+            span.forEachTag(updater);
+        }
+        return true;
+    }
+
+    /** Returns the value to keep for this tag, or null to remove it. */
+    String update(String key, String value) {
+        if ((allow != null && !allow.matches(key)) || (deny != null && deny.matches(key))) {
+            return null;
+        }
+        if (redact != null && redact.matches(key)) {
+            return REDACTED;
+        }
+        if (maxValueLength > 0 && value.length() > maxValueLength) {
+            return value.substring(0, maxValueLength);
+        }
+        return value;
+    }
+
+    final class CountingUpdater implements MutableSpan.TagUpdater {
+        int count;
+
+        @Override
+        public String update(String key, String value) {
+            String result = TagFilterHandler.this.update(key, value);
+            if (result != null && ++count > maxCount) {
+                return null;
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TagFilterHandler";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.propagation;
+
+import brave.propagation.TraceContext;
+
+/**
+ * Memo of encoded header values, carried in {@link TraceContext#extra()}.
+ * <p>
+ * Brave copies extra from parent to child, so one instance is shared by every local span of a trace. Each
+ * format keeps only its most recent encoding, keyed by the ids and flags it was computed from: fan-out calls
+ * injecting the same context reuse the Strings, and any other context simply re-encodes and replaces them.
+ * Entries are immutable, so racing writers are harmless.
+ *
+ * @author zhangbin
+ */
+final class EncodedContext {
+
+    private final Entry[] entries = new Entry[FORMATS.length];
+
+    private final static PropagationFormat[] FORMATS = PropagationFormat.values();
+
+    String[] get(PropagationFormat format, TraceContext context) {
+        Entry entry = entries[format.ordinal()];
+        return entry != null && entry.matches(context) ? entry.values : null;
+    }
+
+    void put(PropagationFormat format, TraceContext context, String[] values) {
+        entries[format.ordinal()] = new Entry(context, values);
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedContext";
+    }
+
+    private final static class Entry {
+        final long traceIdHigh;
+        final long traceId;
+        final long spanId;
+        final long parentId;
+        final int sampling;
+        final String[] values;
+
+        Entry(TraceContext context, String[] values) {
+            this.traceIdHigh = context.traceIdHigh();
+            this.traceId = context.traceId();
+            this.spanId = context.spanId();
+            this.parentId = context.parentIdAsLong();
+            this.sampling = sampling(context);
+            this.values = values;
+        }
+
+        boolean matches(TraceContext context) {
+            return spanId == context.spanId()
+                    && traceId == context.traceId()
+                    && traceIdHigh == context.traceIdHigh()
+                    && parentId == context.parentIdAsLong()
+                    && sampling == sampling(context);
+        }
+
+        static int sampling(TraceContext context) {
+            if (context.debug()) {
+                return 3;
+            }
+            Boolean sampled = context.sampled();
+            return sampled == null ? 0 : sampled ? 1 : 2;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.propagation;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Propagation over one or more {@link PropagationFormat}s.
+ * <p>
+ * Injection writes every configured format. Extraction tries the formats in order and returns the first one
+ * present, so a service can accept several formats while migrating between them.
+ *
+ * @author zhangbin
+ */
+public final class FormatPropagation<K> implements Propagation<K> {
+
+    public static Propagation.Factory newFactory(List<PropagationFormat> formats) {
+        if (formats == null || formats.isEmpty()) {
+            throw new IllegalArgumentException("At least one propagation format is required");
+        }
+        return new Factory(formats.toArray(new PropagationFormat[0]));
+    }
+
+    private final PropagationFormat[] formats;
+    private final int[] offsets;
+    private final List<K> keys;
+
+    FormatPropagation(PropagationFormat[] formats, KeyFactory<K> keyFactory) {
+        this.formats = formats;
+        this.offsets = new int[formats.length];
+        List<K> keys = new ArrayList<>();
+        for (int i = 0; i < formats.length; i++) {
+            offsets[i] = keys.size();
+            for (String name : formats[i].keyNames()) {
+                keys.add(keyFactory.create(name));
+            }
+        }
+        this.keys = Collections.unmodifiableList(keys);
+    }
+
+    @Override
+    public List<K> keys() {
+        return keys;
+    }
+
+    @Override
+    public <C> TraceContext.Injector<C> injector(final Setter<C, K> setter) {
+        if (setter == null) {
+            throw new NullPointerException("setter == null");
+        }
+        return new TraceContext.Injector<C>() {
+            @Override
+            public void inject(TraceContext context, C carrier) {
+                EncodedContext cache = context.findExtra(EncodedContext.class);
+                for (int i = 0; i < formats.length; i++) {
+                    PropagationFormat format = formats[i];
+                    String[] values = cache != null ? cache.get(format, context) : null;
+                    if (values == null) {
+                        values = format.encode(context);
+                        if (cache != null) {
+                            cache.put(format, context, values);
+                        }
+                    }
+                    for (int j = 0; j < values.length; j++) {
+                        if (values[j] != null) {
+                            setter.put(carrier, keys.get(offsets[i] + j), values[j]);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public <C> TraceContext.Extractor<C> extractor(final Getter<C, K> getter) {
+        if (getter == null) {
+            throw new NullPointerException("getter == null");
+        }
+        return new TraceContext.Extractor<C>() {
+            @Override
+            public TraceContextOrSamplingFlags extract(C carrier) {
+                if (carrier == null) {
+                    throw new NullPointerException("carrier == null");
+                }
+                for (int i = 0; i < formats.length; i++) {
+                    TraceContextOrSamplingFlags result = formats[i].extract(getter, carrier, keys, offsets[i]);
+                    if (result != null) {
+                        // the cache rides along with the extracted context, so the local root needs no decoration
+                        return result.context() != null
+                                ? result.toBuilder().addExtra(new EncodedContext()).build()
+                                : result;
+                    }
+                }
+                return TraceContextOrSamplingFlags.EMPTY;
+            }
+        };
+    }
+
+    final static class Factory extends Propagation.Factory {
+        private final PropagationFormat[] formats;
+        private final boolean supportsJoin;
+        private final boolean requires128BitTraceId;
+
+        Factory(PropagationFormat[] formats) {
+            this.formats = formats;
+            boolean supportsJoin = true;
+            boolean requires128BitTraceId = false;
+            for (PropagationFormat format : formats) {
+                supportsJoin &= format.supportsJoin();
+                requires128BitTraceId |= format.requires128BitTraceId();
+            }
+            this.supportsJoin = supportsJoin;
+            this.requires128BitTraceId = requires128BitTraceId;
+        }
+
+        @Override
+        public boolean supportsJoin() {
+            return supportsJoin;
+        }
+
+        @Override
+        public boolean requires128BitTraceId() {
+            return requires128BitTraceId;
+        }
+
+        @Override
+        public <K> Propagation<K> create(KeyFactory<K> keyFactory) {
+            return new FormatPropagation<>(formats, keyFactory);
+        }
+
+        /** Attaches the encoding cache once per local root; children inherit it through extra. */
+        @Override
+        public TraceContext decorate(TraceContext context) {
+            if (context.findExtra(EncodedContext.class) != null) {
+                return context;
+            }
+            List<Object> extra = new ArrayList<>(context.extra().size() + 1);
+            extra.addAll(context.extra());
+            extra.add(new EncodedContext());
+            return context.toBuilder().extra(Collections.unmodifiableList(extra)).build();
+        }
+
+        @Override
+        public String toString() {
+            return "FormatPropagationFactory" + Arrays.toString(formats);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.propagation;
+
+/**
+ * Lower-hex helpers that read from and write into caller-supplied buffers, so that header values can be
+ * parsed and formatted without substrings or per-id Strings.
+ *
+ * @author zhangbin
+ */
+public final class HexCodec {
+
+    private HexCodec() {
+    }
+
+    final static char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final static ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            // large enough for the longest format: b3 single with a 128-bit trace id and a parent id
+            return new char[68];
+        }
+    };
+
+    /** Returns a per-thread scratch buffer used to assemble a header value before the final String is created. */
+    static char[] buffer() {
+        return BUFFER.get();
+    }
+
+    /** Writes {@code value} as 16 lower-hex characters starting at {@code pos}, returning the next position. */
+    public static int writeHexLong(char[] buffer, int pos, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer[pos++] = HEX_DIGITS[(int) (value >>> shift) & 0xf];
+        }
+        return pos;
+    }
+
+    /** Writes {@code value} as 2 lower-hex characters starting at {@code pos}, returning the next position. */
+    static int writeHexByte(char[] buffer, int pos, int value) {
+        buffer[pos++] = HEX_DIGITS[(value >>> 4) & 0xf];
+        buffer[pos++] = HEX_DIGITS[value & 0xf];
+        return pos;
+    }
+
+    /** Formats {@code value} as a 16 character lower-hex String. */
+    public static String toLowerHex(long value) {
+        char[] buffer = buffer();
+        writeHexLong(buffer, 0, value);
+        return new String(buffer, 0, 16);
+    }
+
+    /**
+     * Parses the lower-hex characters in {@code [begin, end)} of {@code sequence} as an unsigned long. Returns 0
+     * when the range is empty, longer than 16 characters or contains anything but lower-hex digits; 0 is never a
+     * valid id, so callers treat it as "absent".
+     */
+    public static long lenientLowerHexToUnsignedLong(CharSequence sequence, int begin, int end) {
+        int length = end - begin;
+        if (length <= 0 || length > 16) {
+            return 0L;
+        }
+        long result = 0L;
+        for (int i = begin; i < end; i++) {
+            int digit = digit(sequence.charAt(i));
+            if (digit < 0) {
+                return 0L;
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /** Returns true if every character in {@code [begin, end)} of {@code sequence} is a lower-hex digit. */
+    static boolean isLowerHex(CharSequence sequence, int begin, int end) {
+        for (int i = begin; i < end; i++) {
+            if (digit(sequence.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the value of a lower-hex digit, or -1 if {@code c} is not one. */
+    static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
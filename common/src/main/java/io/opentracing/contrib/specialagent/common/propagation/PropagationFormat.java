@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.propagation;
+
+import brave.propagation.Propagation;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+
+import java.util.List;
+
+import static io.opentracing.contrib.specialagent.common.propagation.HexCodec.isLowerHex;
+import static io.opentracing.contrib.specialagent.common.propagation.HexCodec.lenientLowerHexToUnsignedLong;
+import static io.opentracing.contrib.specialagent.common.propagation.HexCodec.writeHexByte;
+import static io.opentracing.contrib.specialagent.common.propagation.HexCodec.writeHexLong;
+
+/**
+ * Wire formats selectable through {@code BRAVE_PROPAGATION}.
+ * <p>
+ * Each format encodes a context into one value per header name (in the order of {@link #keyNames()}, null when
+ * a header is not sent), and extracts straight from the carrier's values without intermediate substrings.
+ *
+ * @author zhangbin
+ */
+public enum PropagationFormat {
+
+    /**
+     * Multi-header B3: {@code X-B3-TraceId}, {@code X-B3-SpanId}, {@code X-B3-ParentSpanId}, ... Like Brave's
+     * {@code B3Propagation}, a single {@code b3} header is extracted first when present, but never injected.
+     */
+    B3("X-B3-TraceId", "X-B3-SpanId", "X-B3-ParentSpanId", "X-B3-Sampled", "X-B3-Flags", "b3") {
+        @Override
+        String[] encode(TraceContext context) {
+            String[] values = new String[6];
+            char[] buffer = HexCodec.buffer();
+            int length = writeTraceId(buffer, 0, context);
+            values[0] = new String(buffer, 0, length);
+            writeHexLong(buffer, 0, context.spanId());
+            values[1] = new String(buffer, 0, 16);
+            long parentId = context.parentIdAsLong();
+            if (parentId != 0L) {
+                writeHexLong(buffer, 0, parentId);
+                values[2] = new String(buffer, 0, 16);
+            }
+            if (context.debug()) {
+                values[4] = "1";
+            } else if (context.sampled() != null) {
+                values[3] = context.sampled() ? "1" : "0";
+            }
+            return values;
+        }
+
+        @Override
+        <C, K> TraceContextOrSamplingFlags extract(Propagation.Getter<C, K> getter, C carrier, List<K> keys, int offset) {
+            TraceContextOrSamplingFlags single = extractB3Single(getter.get(carrier, keys.get(offset + 5)));
+            if (single != null) {
+                return single;
+            }
+            String sampledValue = getter.get(carrier, keys.get(offset + 3));
+            Boolean sampled = sampledValue == null ? null
+                    : sampledValue.equals("1") || sampledValue.equalsIgnoreCase("true");
+            boolean debug = "1".equals(getter.get(carrier, keys.get(offset + 4)));
+
+            String traceId = getter.get(carrier, keys.get(offset));
+            if (traceId == null) {
+                if (sampled == null && !debug) {
+                    return null;
+                }
+                return TraceContextOrSamplingFlags.create(debug ? SamplingFlags.DEBUG
+                        : sampled ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED);
+            }
+
+            TraceContext.Builder builder = TraceContext.newBuilder();
+            if (!parseTraceId(traceId, 0, traceId.length(), builder)) {
+                return null;
+            }
+            String spanId = getter.get(carrier, keys.get(offset + 1));
+            long spanIdValue = spanId == null ? 0L : lenientLowerHexToUnsignedLong(spanId, 0, spanId.length());
+            if (spanIdValue == 0L) {
+                return null;
+            }
+            builder.spanId(spanIdValue);
+
+            String parentId = getter.get(carrier, keys.get(offset + 2));
+            if (parentId != null) {
+                long parentIdValue = lenientLowerHexToUnsignedLong(parentId, 0, parentId.length());
+                if (parentIdValue == 0L) {
+                    return null;
+                }
+                builder.parentId(parentIdValue);
+            }
+            if (debug) {
+                builder.debug(true);
+            } else if (sampled != null) {
+                builder.sampled(sampled.booleanValue());
+            }
+            return TraceContextOrSamplingFlags.create(builder.build());
+        }
+    },
+
+    /** Single-header B3: {@code b3: {traceId}-{spanId}-{sampling}-{parentSpanId}}. */
+    B3_SINGLE("b3") {
+        @Override
+        String[] encode(TraceContext context) {
+            char[] buffer = HexCodec.buffer();
+            int pos = writeTraceId(buffer, 0, context);
+            buffer[pos++] = '-';
+            pos = writeHexLong(buffer, pos, context.spanId());
+            boolean hasSampling = true;
+            if (context.debug()) {
+                buffer[pos++] = '-';
+                buffer[pos++] = 'd';
+            } else if (context.sampled() != null) {
+                buffer[pos++] = '-';
+                buffer[pos++] = context.sampled() ? '1' : '0';
+            } else {
+                hasSampling = false;
+            }
+            long parentId = context.parentIdAsLong();
+            // the parent id may only follow a sampling state
+            if (parentId != 0L && hasSampling) {
+                buffer[pos++] = '-';
+                pos = writeHexLong(buffer, pos, parentId);
+            }
+            return new String[]{new String(buffer, 0, pos)};
+        }
+
+        @Override
+        <C, K> TraceContextOrSamplingFlags extract(Propagation.Getter<C, K> getter, C carrier, List<K> keys, int offset) {
+            return extractB3Single(getter.get(carrier, keys.get(offset)));
+        }
+    },
+
+    /** W3C trace context: {@code traceparent: 00-{traceId}-{parentId}-{flags}}. Always uses 128-bit trace ids. */
+    W3C("traceparent") {
+        @Override
+        String[] encode(TraceContext context) {
+            char[] buffer = HexCodec.buffer();
+            buffer[0] = '0';
+            buffer[1] = '0';
+            buffer[2] = '-';
+            int pos = writeHexLong(buffer, 3, context.traceIdHigh());
+            pos = writeHexLong(buffer, pos, context.traceId());
+            buffer[pos++] = '-';
+            pos = writeHexLong(buffer, pos, context.spanId());
+            buffer[pos++] = '-';
+            pos = writeHexByte(buffer, pos, Boolean.TRUE.equals(context.sampled()) ? 1 : 0);
+            return new String[]{new String(buffer, 0, pos)};
+        }
+
+        @Override
+        <C, K> TraceContextOrSamplingFlags extract(Propagation.Getter<C, K> getter, C carrier, List<K> keys, int offset) {
+            String value = getter.get(carrier, keys.get(offset));
+            if (value == null) {
+                return null;
+            }
+            int length = value.length();
+            if (length < TRACEPARENT_LENGTH || value.charAt(2) != '-' || value.charAt(35) != '-'
+                    || value.charAt(52) != '-' || !isLowerHex(value, 0, 2) || !isLowerHex(value, 53, 55)) {
+                return null;
+            }
+            // version 00 is exactly 55 characters; future versions may only append '-'-prefixed fields
+            boolean version00 = value.charAt(0) == '0' && value.charAt(1) == '0';
+            if (value.charAt(0) == 'f' && value.charAt(1) == 'f') {
+                return null;
+            } else if (version00 ? length != TRACEPARENT_LENGTH
+                    : length > TRACEPARENT_LENGTH && value.charAt(TRACEPARENT_LENGTH) != '-') {
+                return null;
+            }
+            if (!isLowerHex(value, 3, 35)) {
+                return null;
+            }
+            long traceIdHigh = lenientLowerHexToUnsignedLong(value, 3, 19);
+            long traceId = lenientLowerHexToUnsignedLong(value, 19, 35);
+            long spanId = lenientLowerHexToUnsignedLong(value, 36, 52);
+            if ((traceIdHigh == 0L && traceId == 0L) || spanId == 0L) {
+                return null;
+            }
+            boolean sampled = (HexCodec.digit(value.charAt(54)) & 1) == 1;
+            return TraceContextOrSamplingFlags.create(TraceContext.newBuilder()
+                    .traceIdHigh(traceIdHigh)
+                    .traceId(traceId)
+                    .spanId(spanId)
+                    .sampled(sampled)
+                    .build());
+        }
+
+        @Override
+        boolean supportsJoin() {
+            // traceparent has no notion of a span shared between client and server
+            return false;
+        }
+
+        @Override
+        boolean requires128BitTraceId() {
+            return true;
+        }
+    };
+
+    final static int TRACEPARENT_LENGTH = 55;
+
+    private final String[] keyNames;
+
+    PropagationFormat(String... keyNames) {
+        this.keyNames = keyNames;
+    }
+
+    /** Header names used by this format, in the order of the values returned by {@link #encode(TraceContext)}. */
+    String[] keyNames() {
+        return keyNames;
+    }
+
+    /** Encodes {@code context} into one value per {@link #keyNames() key}; values are null when not sent. */
+    abstract String[] encode(TraceContext context);
+
+    /**
+     * Extracts from the keys starting at {@code offset} of {@code keys}, returning null if this format's headers
+     * are absent or malformed so that a composite can fall through to the next format.
+     */
+    abstract <C, K> TraceContextOrSamplingFlags extract(Propagation.Getter<C, K> getter, C carrier, List<K> keys, int offset);
+
+    boolean supportsJoin() {
+        return true;
+    }
+
+    boolean requires128BitTraceId() {
+        return false;
+    }
+
+    /** Parses a {@code b3} header value, returning null if it is absent or malformed. */
+    static TraceContextOrSamplingFlags extractB3Single(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        int length = value.length();
+        if (length == 1) {
+            switch (value.charAt(0)) {
+                case '0':
+                    return TraceContextOrSamplingFlags.NOT_SAMPLED;
+                case '1':
+                    return TraceContextOrSamplingFlags.SAMPLED;
+                case 'd':
+                    return TraceContextOrSamplingFlags.DEBUG;
+                default:
+                    return null;
+            }
+        }
+
+        int traceIdEnd = value.indexOf('-');
+        if (traceIdEnd == -1) {
+            return null;
+        }
+        TraceContext.Builder builder = TraceContext.newBuilder();
+        if (!parseTraceId(value, 0, traceIdEnd, builder)) {
+            return null;
+        }
+        int spanIdEnd = traceIdEnd + 17;
+        if (spanIdEnd > length || (spanIdEnd < length && value.charAt(spanIdEnd) != '-')) {
+            return null;
+        }
+        long spanId = lenientLowerHexToUnsignedLong(value, traceIdEnd + 1, spanIdEnd);
+        if (spanId == 0L) {
+            return null;
+        }
+        builder.spanId(spanId);
+
+        int pos = spanIdEnd + 1;
+        if (pos < length) {
+            if (pos + 1 < length && value.charAt(pos + 1) != '-') {
+                return null;
+            }
+            switch (value.charAt(pos)) {
+                case '0':
+                    builder.sampled(false);
+                    break;
+                case '1':
+                    builder.sampled(true);
+                    break;
+                case 'd':
+                    builder.debug(true);
+                    break;
+                default:
+                    return null;
+            }
+            pos += 2;
+            if (pos < length) {
+                long parentId = length - pos == 16 ? lenientLowerHexToUnsignedLong(value, pos, length) : 0L;
+                if (parentId == 0L) {
+                    return null;
+                }
+                builder.parentId(parentId);
+            }
+        }
+        return TraceContextOrSamplingFlags.create(builder.build());
+    }
+
+    /** Parses a 16 or 32 character trace id in {@code [begin, end)} into {@code builder}. */
+    static boolean parseTraceId(String value, int begin, int end, TraceContext.Builder builder) {
+        int length = end - begin;
+        if (length == 32) {
+            if (!isLowerHex(value, begin, begin + 16)) {
+                return false;
+            }
+            builder.traceIdHigh(lenientLowerHexToUnsignedLong(value, begin, begin + 16));
+            begin += 16;
+        } else if (length != 16) {
+            return false;
+        }
+        long traceId = lenientLowerHexToUnsignedLong(value, begin, end);
+        if (traceId == 0L) {
+            return false;
+        }
+        builder.traceId(traceId);
+        return true;
+    }
+
+    /** Writes the 16 or 32 character trace id of {@code context}, returning the next position. */
+    static int writeTraceId(char[] buffer, int pos, TraceContext context) {
+        if (context.traceIdHigh() != 0L) {
+            pos = writeHexLong(buffer, pos, context.traceIdHigh());
+        }
+        return writeHexLong(buffer, pos, context.traceId());
+    }
+}
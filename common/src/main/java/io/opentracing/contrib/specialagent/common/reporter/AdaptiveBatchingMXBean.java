@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+/**
+ * Values chosen by an {@link AdaptiveBatchingReporter}, registered as
+ * {@code io.opentracing.contrib.specialagent:type=AdaptiveBatchingReporter,name=<destination>}.
+ *
+ * @author zhangbin
+ */
+public interface AdaptiveBatchingMXBean {
+
+    /** Longest time a span waits in the queue before a flush is forced. */
+    long getFlushIntervalNanos();
+
+    /** Queued bytes at which a flush is started without waiting for the interval. */
+    long getTargetBatchBytes();
+
+    /** Smoothed rate at which encoded spans are queued. */
+    double getArrivalBytesPerSecond();
+
+    /** Smoothed duration of one sender request. */
+    long getSendLatencyNanos();
+
+    long getMaxExportLatencyNanos();
+
+    long getFlushes();
+}
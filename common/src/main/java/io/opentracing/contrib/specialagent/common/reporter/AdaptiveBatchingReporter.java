@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import zipkin2.CheckResult;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.InMemoryReporterMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link AsyncReporter} whose flush interval and batch size are tuned online instead of being fixed by
+ * {@code messageTimeout}.
+ * <p>
+ * The wrapped reporter is built without its own flush thread. A controller thread watches how fast encoded spans
+ * are queued and how long each sender request takes, and flushes when either the queued bytes reach the target
+ * batch size or the oldest queued span has waited the flush interval. Export latency is roughly the wait plus one
+ * request, so the interval is the latency bound minus twice the smoothed request time, and the target batch is
+ * what arrives in one interval, capped at {@code messageMaxBytes}. Under load batches fill up and are sent as soon
+ * as they are full; when traffic is light the interval bounds how long a span can sit in the queue.
+ * <p>
+ * The chosen values are exposed through {@link AdaptiveBatchingMXBean}.
+ *
+ * @author zhangbin
+ */
+public final class AdaptiveBatchingReporter<S> extends AsyncReporter<S> implements AdaptiveBatchingMXBean {
+
+    private final static Logger logger = Logger.getLogger(AdaptiveBatchingReporter.class.getName());
+
+    final static long MIN_FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    final static long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    final static long ARRIVAL_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** weight of the newest sample in the moving averages */
+    final static double SMOOTHING = 0.3D;
+
+    public static Builder newBuilder(AsyncReporter.Builder reporter) {
+        return new Builder(reporter);
+    }
+
+    public static final class Builder {
+        private final AsyncReporter.Builder reporter;
+        private String name = "default";
+        private InMemoryReporterMetrics metrics;
+        private int messageMaxBytes = 5242880;
+        private long maxExportLatencyNanos = TimeUnit.SECONDS.toNanos(1);
+        private long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+        Builder(AsyncReporter.Builder reporter) {
+            if (reporter == null) {
+                throw new NullPointerException("reporter == null");
+            }
+            this.reporter = reporter;
+        }
+
+        /** Names the controller thread and the MBean. */
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /** Replaces the metrics of the wrapped reporter; the controller reads its queue counters. */
+        public Builder metrics(InMemoryReporterMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /** Upper bound of the target batch; should match the wrapped reporter's. */
+        public Builder messageMaxBytes(int messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+            return this;
+        }
+
+        /** Time from a span being queued to its request completing that the controller aims to stay under. */
+        public Builder maxExportLatency(long maxExportLatency, TimeUnit unit) {
+            this.maxExportLatencyNanos = unit.toNanos(maxExportLatency);
+            return this;
+        }
+
+        /** How long {@link #close()} keeps flushing what is still queued. */
+        public Builder closeTimeout(long closeTimeout, TimeUnit unit) {
+            this.closeTimeoutNanos = unit.toNanos(closeTimeout);
+            return this;
+        }
+
+        public <S> AdaptiveBatchingReporter<S> build(BytesEncoder<S> encoder) {
+            if (maxExportLatencyNanos <= 0) {
+                throw new IllegalArgumentException("maxExportLatency must be positive");
+            }
+            if (metrics == null) {
+                metrics = new InMemoryReporterMetrics();
+            }
+            AsyncReporter<S> delegate = reporter.metrics(metrics)
+                    .messageTimeout(0, TimeUnit.NANOSECONDS)
+                    .build(encoder);
+            AdaptiveBatchingReporter<S> result = new AdaptiveBatchingReporter<>(this, delegate);
+            result.start();
+            return result;
+        }
+    }
+
+    private final String name;
+    private final AsyncReporter<S> delegate;
+    private final InMemoryReporterMetrics metrics;
+    private final int messageMaxBytes;
+    private final long maxExportLatencyNanos;
+    private final long closeTimeoutNanos;
+    private final Thread flushThread;
+    private final Object lock = new Object();
+    private ObjectName objectName;
+    private volatile boolean closed;
+    /** set by the first report after a flush, so the interval runs from the oldest queued span */
+    private volatile boolean queued;
+    private volatile long queuedSinceNanos;
+
+    private volatile long flushIntervalNanos;
+    private volatile long targetBatchBytes;
+    private volatile double arrivalBytesPerSecond;
+    private volatile long sendLatencyNanos;
+    private volatile long flushes;
+
+    private AdaptiveBatchingReporter(Builder builder, AsyncReporter<S> delegate) {
+        this.name = builder.name;
+        this.delegate = delegate;
+        this.metrics = builder.metrics;
+        this.messageMaxBytes = builder.messageMaxBytes;
+        this.maxExportLatencyNanos = builder.maxExportLatencyNanos;
+        this.closeTimeoutNanos = builder.closeTimeoutNanos;
+        this.flushIntervalNanos = Math.max(MIN_FLUSH_INTERVAL_NANOS, maxExportLatencyNanos);
+        this.targetBatchBytes = messageMaxBytes;
+        this.flushThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                control();
+            }
+        }, "AdaptiveBatchingReporter{" + name + "}");
+        this.flushThread.setDaemon(true);
+    }
+
+    private void start() {
+        flushThread.start();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("io.opentracing.contrib.specialagent:type=AdaptiveBatchingReporter,name="
+                    + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                this.objectName = objectName;
+            }
+        } catch (JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to register metrics of " + this, e);
+        }
+    }
+
+    @Override
+    public void report(S span) {
+        if (!queued) {
+            queuedSinceNanos = System.nanoTime();
+            queued = true;
+        }
+        delegate.report(span);
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    @Override
+    public CheckResult check() {
+        return delegate.check();
+    }
+
+    private void control() {
+        long now = System.nanoTime();
+        long lastFlush = now;
+        long lastSample = now;
+        long sampledSpanBytes = metrics.spanBytes();
+        // spanBytes only grows; what was reported since the last flush plus what that flush left behind is queued
+        long spanBytesAtFlush = sampledSpanBytes;
+        while (!closed) {
+            now = System.nanoTime();
+            long spanBytes = metrics.spanBytes();
+            if (now - lastSample >= ARRIVAL_SAMPLE_NANOS) {
+                double rate = (spanBytes - sampledSpanBytes) * 1e9D / (now - lastSample);
+                arrivalBytesPerSecond = smooth(arrivalBytesPerSecond, rate);
+                sampledSpanBytes = spanBytes;
+                lastSample = now;
+                adapt();
+            }
+
+            long pending = spanBytes - spanBytesAtFlush + metrics.queuedBytes();
+            long interval = flushIntervalNanos;
+            long wait = Math.min(MAX_POLL_NANOS, Math.max(interval / 8, MIN_FLUSH_INTERVAL_NANOS));
+            if (pending > 0) {
+                // what the last flush left behind has been queued at least since that flush
+                long waited = now - (queued ? queuedSinceNanos : lastFlush);
+                if (pending >= targetBatchBytes || waited >= interval) {
+                    spanBytesAtFlush = spanBytes;
+                    lastFlush = now;
+                    queued = false;
+                    send();
+                    continue;
+                }
+                wait = Math.max(MIN_FLUSH_INTERVAL_NANOS, Math.min(wait, interval - waited));
+            }
+
+            synchronized (lock) {
+                if (!closed) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void send() {
+        long messages = metrics.messages() + metrics.messagesDropped();
+        long start = System.nanoTime();
+        try {
+            delegate.flush();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to flush " + this, e);
+        }
+        flushes++;
+        // an empty drain sends nothing, so it says nothing about the sender
+        if (metrics.messages() + metrics.messagesDropped() > messages) {
+            sendLatencyNanos = (long) smooth(sendLatencyNanos, System.nanoTime() - start);
+            adapt();
+        }
+    }
+
+    private void adapt() {
+        long interval = maxExportLatencyNanos - 2 * sendLatencyNanos;
+        interval = Math.max(MIN_FLUSH_INTERVAL_NANOS, Math.min(maxExportLatencyNanos, interval));
+        long target = (long) (arrivalBytesPerSecond * interval / 1e9D);
+        flushIntervalNanos = interval;
+        targetBatchBytes = Math.max(1L, Math.min(messageMaxBytes, target));
+    }
+
+    static double smooth(double average, double sample) {
+        return average == 0D ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    /** Stops the controller, keeps flushing until the queue is empty or the close timeout passes, then closes. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        long deadline = System.nanoTime() + closeTimeoutNanos;
+        try {
+            flushThread.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(closeTimeoutNanos)));
+            do {
+                delegate.flush();
+            } while (metrics.queuedBytes() > 0 && System.nanoTime() - deadline < 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to flush " + this + " on close", e);
+        } finally {
+            delegate.close();
+            unregister();
+        }
+    }
+
+    private void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.log(Level.FINE, "Failed to unregister metrics of " + this, e);
+        }
+    }
+
+    /** Returns the queue, send and drop counters of the wrapped reporter. */
+    public InMemoryReporterMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public long getFlushIntervalNanos() {
+        return flushIntervalNanos;
+    }
+
+    @Override
+    public long getTargetBatchBytes() {
+        return targetBatchBytes;
+    }
+
+    @Override
+    public double getArrivalBytesPerSecond() {
+        return arrivalBytesPerSecond;
+    }
+
+    @Override
+    public long getSendLatencyNanos() {
+        return sendLatencyNanos;
+    }
+
+    @Override
+    public long getMaxExportLatencyNanos() {
+        return maxExportLatencyNanos;
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveBatchingReporter{" + name + ", " + delegate + "}";
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.InMemoryReporterMetrics;
+import zipkin2.reporter.Reporter;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports every span to several destinations, each with its own {@link AsyncReporter}: its own bounded queue,
+ * batching, sender thread and {@link InMemoryReporterMetrics drop accounting}.
+ * <p>
+ * A span is encoded once per distinct {@link SpanBytesEncoder}, and the same bytes are queued for every
+ * destination using that encoder. Queuing never blocks, so a slow destination only fills (and drops from) its
+ * own queue. {@link #flush()} and {@link #close()} run on every destination at once, so each close gets its own
+ * close timeout rather than what the ones before it left over.
+ *
+ * @author zhangbin
+ */
+public final class FanOutReporter implements Reporter<Span>, Flushable, Closeable {
+
+    private final static Logger logger = Logger.getLogger(FanOutReporter.class.getName());
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private final Map<String, SpanBytesEncoder> encoders = new LinkedHashMap<>();
+        private final Map<String, AsyncReporter.Builder> reporters = new LinkedHashMap<>();
+        private final Map<String, AdaptiveBatchingReporter.Builder> adaptiveReporters = new LinkedHashMap<>();
+
+        Builder() {
+        }
+
+        /**
+         * @param name     used for logging and {@link #metrics(String)}
+         * @param encoder  must match the encoding of the builder's sender
+         * @param reporter queue and batching settings of this destination; its metrics are replaced
+         */
+        public Builder addDestination(String name, SpanBytesEncoder encoder, AsyncReporter.Builder reporter) {
+            if (encoders.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate destination " + name);
+            }
+            encoders.put(name, encoder);
+            reporters.put(name, reporter);
+            return this;
+        }
+
+        /** Like {@link #addDestination(String, SpanBytesEncoder, AsyncReporter.Builder)}, batching adaptively. */
+        public Builder addDestination(String name, SpanBytesEncoder encoder, AdaptiveBatchingReporter.Builder reporter) {
+            if (encoders.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate destination " + name);
+            }
+            encoders.put(name, encoder);
+            adaptiveReporters.put(name, reporter.name(name));
+            return this;
+        }
+
+        public FanOutReporter build() {
+            if (encoders.isEmpty()) {
+                throw new IllegalArgumentException("At least one destination is required");
+            }
+            return new FanOutReporter(this);
+        }
+    }
+
+    private final SpanBytesEncoder[] encoders;
+    private final List<List<AsyncReporter<byte[]>>> reportersByEncoder;
+    private final Map<String, AsyncReporter<byte[]>> reporters;
+    private final Map<String, InMemoryReporterMetrics> metrics;
+    // idle threads go away after a minute
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FanOutReporter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private FanOutReporter(Builder builder) {
+        Map<SpanBytesEncoder, List<AsyncReporter<byte[]>>> groups = new LinkedHashMap<>();
+        Map<String, AsyncReporter<byte[]>> reporters = new LinkedHashMap<>();
+        Map<String, InMemoryReporterMetrics> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, SpanBytesEncoder> entry : builder.encoders.entrySet()) {
+            String name = entry.getKey();
+            SpanBytesEncoder encoder = entry.getValue();
+            InMemoryReporterMetrics destinationMetrics = new InMemoryReporterMetrics();
+            PreEncodedBytesEncoder preEncoded = new PreEncodedBytesEncoder(encoder.encoding());
+            AdaptiveBatchingReporter.Builder adaptive = builder.adaptiveReporters.get(name);
+            AsyncReporter<byte[]> reporter = adaptive != null
+                    ? adaptive.metrics(destinationMetrics).build(preEncoded)
+                    : builder.reporters.get(name).metrics(destinationMetrics).build(preEncoded);
+
+            List<AsyncReporter<byte[]>> group = groups.get(encoder);
+            if (group == null) {
+                groups.put(encoder, group = new ArrayList<>());
+            }
+            group.add(reporter);
+            reporters.put(name, reporter);
+            metrics.put(name, destinationMetrics);
+        }
+
+        this.encoders = groups.keySet().toArray(new SpanBytesEncoder[0]);
+        this.reportersByEncoder = new ArrayList<>(groups.values());
+        this.reporters = Collections.unmodifiableMap(reporters);
+        this.metrics = Collections.unmodifiableMap(metrics);
+    }
+
+    @Override
+    public void report(Span span) {
+        for (int i = 0; i < encoders.length; i++) {
+            byte[] encoded = encoders[i].encode(span);
+            for (AsyncReporter<byte[]> reporter : reportersByEncoder.get(i)) {
+                reporter.report(encoded);
+            }
+        }
+    }
+
+    /** Returns the destination names, in configuration order. */
+    public List<String> destinations() {
+        return new ArrayList<>(reporters.keySet());
+    }
+
+    /** Returns the queue, send and drop counters of one destination, or null if there is no such destination. */
+    public InMemoryReporterMetrics metrics(String destination) {
+        return metrics.get(destination);
+    }
+
+    @Override
+    public void flush() {
+        forEachDestination(false);
+    }
+
+    /** Closes every destination, even if closing another one fails. */
+    @Override
+    public void close() {
+        forEachDestination(true);
+    }
+
+    /** Flushes or closes the destinations in parallel and waits for all of them. */
+    private void forEachDestination(final boolean close) {
+        if (reporters.size() == 1) {
+            Map.Entry<String, AsyncReporter<byte[]>> entry = reporters.entrySet().iterator().next();
+            flushOrClose(entry.getKey(), entry.getValue(), close);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(reporters.size());
+        for (final Map.Entry<String, AsyncReporter<byte[]>> entry : reporters.entrySet()) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushOrClose(entry.getKey(), entry.getValue(), close);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Failed to " + (close ? "close" : "flush") + " a destination", e.getCause());
+            }
+        }
+    }
+
+    private static void flushOrClose(String name, AsyncReporter<byte[]> reporter, boolean close) {
+        try {
+            if (close) {
+                reporter.close();
+            } else {
+                reporter.flush();
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to " + (close ? "close" : "flush") + " destination " + name, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FanOutReporter" + reporters.keySet();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Passes through spans that were already encoded, so one encoding can be queued by several reporters.
+ *
+ * @author zhangbin
+ */
+final class PreEncodedBytesEncoder implements BytesEncoder<byte[]> {
+
+    private final Encoding encoding;
+    private final BytesMessageEncoder messageEncoder;
+
+    PreEncodedBytesEncoder(Encoding encoding) {
+        this.encoding = encoding;
+        this.messageEncoder = BytesMessageEncoder.forEncoding(encoding);
+    }
+
+    @Override
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    @Override
+    public int sizeInBytes(byte[] encodedSpan) {
+        return encodedSpan.length;
+    }
+
+    @Override
+    public byte[] encode(byte[] encodedSpan) {
+        return encodedSpan;
+    }
+
+    @Override
+    public byte[] encodeList(List<byte[]> encodedSpans) {
+        return messageEncoder.encode(encodedSpans);
+    }
+
+    @Override
+    public String toString() {
+        return "PreEncodedBytesEncoder(" + encoding + ")";
+    }
+}
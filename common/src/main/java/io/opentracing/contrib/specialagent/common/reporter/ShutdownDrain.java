@@ -0,0 +1,459 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends what is still queued when the process stops, instead of dropping it on close.
+ * <p>
+ * Senders are {@link #wrap wrapped} when the reporter is built. {@link #drain} then flushes the reporter from
+ * {@code concurrency} threads at once; each flush takes the next batch off the queue, so up to that many sender
+ * requests are in flight. Once every wrapped sender is handed an empty batch the queue is drained. At the deadline
+ * the wrapped senders stop sending and append each remaining batch to a spill file instead, as do requests that
+ * fail while draining. The next start replays spill files in the background through the same sender, so spans
+ * are delivered at least once.
+ * <p>
+ * Spans still in flight at the deadline, and batches that could not be spilled, are counted as lost. With a
+ * {@code messageTimeout}, the batch the reporter's own thread is filling is out of reach until that timeout
+ * passes, so the timeout should be well under the drain deadline.
+ *
+ * @author zhangbin
+ */
+public final class ShutdownDrain {
+
+    private final static Logger logger = Logger.getLogger(ShutdownDrain.class.getName());
+
+    /** how long spilling what is left may take after the deadline; local writes, so normally far less */
+    final static long MAX_SPILL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+        private int concurrency = 4;
+        private File spillDirectory;
+
+        Builder() {
+        }
+
+        /** How long {@link #drain} sends before spilling what is left. */
+        public Builder timeout(long timeout, TimeUnit unit) {
+            this.timeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /** How many sender requests may be in flight while draining. */
+        public Builder concurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /** Where spill files are kept; without one, spans left at the deadline are lost. */
+        public Builder spillDirectory(File spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        public ShutdownDrain build() {
+            if (timeoutNanos <= 0) {
+                throw new IllegalArgumentException("timeout must be positive");
+            }
+            if (concurrency <= 0) {
+                throw new IllegalArgumentException("concurrency must be positive");
+            }
+            return new ShutdownDrain(this);
+        }
+    }
+
+    /** Span counts of one {@link #drain}. */
+    public static final class Result {
+        private final long drained;
+        private final long spilled;
+        private final long lost;
+
+        Result(long drained, long spilled, long lost) {
+            this.drained = drained;
+            this.spilled = spilled;
+            this.lost = lost;
+        }
+
+        /** Spans sent while draining. */
+        public long drained() {
+            return drained;
+        }
+
+        /** Spans written to spill files for the next start. */
+        public long spilled() {
+            return spilled;
+        }
+
+        /** Spans in flight at the deadline, or that failed to spill. */
+        public long lost() {
+            return lost;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{drained=" + drained + ", spilled=" + spilled + ", lost=" + lost + "}";
+        }
+    }
+
+    enum Phase {
+        SENDING, DRAINING, SPILLING
+    }
+
+    private final long timeoutNanos;
+    private final int concurrency;
+    private final File spillDirectory;
+    private final List<DrainingSender> senders = new CopyOnWriteArrayList<>();
+    private volatile Phase phase = Phase.SENDING;
+
+    private ShutdownDrain(Builder builder) {
+        this.timeoutNanos = builder.timeoutNanos;
+        this.concurrency = builder.concurrency;
+        this.spillDirectory = builder.spillDirectory;
+    }
+
+    /**
+     * Returns {@code sender} as the reporter should see it, and starts replaying what an earlier run spilled for
+     * {@code name}.
+     *
+     * @param name names the spill file, so it must be the same across restarts
+     */
+    public Sender wrap(Sender sender, String name) {
+        if (sender == null) {
+            throw new NullPointerException("sender == null");
+        }
+        SpillFile spillFile = spillDirectory != null ? new SpillFile(new File(spillDirectory, name + ".spans")) : null;
+        DrainingSender result = new DrainingSender(sender, spillFile);
+        senders.add(result);
+        if (spillFile != null) {
+            result.replay();
+        }
+        return result;
+    }
+
+    /**
+     * Flushes {@code reporter} concurrently until its queue is empty or the timeout passes, then spills what is
+     * left. Can be called once; later batches are spilled as well.
+     */
+    public synchronized Result drain(final Flushable reporter) {
+        if (phase != Phase.SENDING) {
+            throw new IllegalStateException("Already drained");
+        }
+        long start = System.nanoTime();
+        final long deadline = start + timeoutNanos;
+        resetEmpty();
+        phase = Phase.DRAINING;
+        Thread[] workers = new Thread[concurrency];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushUntilEmpty(reporter, deadline);
+                }
+            }, "ShutdownDrain-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    worker.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                }
+            }
+            // the reporter's own flush thread may still be sending the batch it took last
+            while (isInFlight() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(1L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // requests still in flight are left to finish; whatever is queued goes to disk
+        resetEmpty();
+        phase = Phase.SPILLING;
+        flushUntilEmpty(reporter, System.nanoTime() + MAX_SPILL_NANOS);
+
+        long drained = 0, spilled = 0, lost = 0;
+        for (DrainingSender sender : senders) {
+            drained += sender.drained.get();
+            spilled += sender.spilled.get();
+            lost += sender.lost.get() + sender.inFlight.get();
+        }
+        Result result = new Result(drained, spilled, lost);
+        logger.log(lost > 0 ? Level.WARNING : Level.INFO, String.format("Drained %d spans, spilled %d to %s and lost %d in %d ms",
+                drained, spilled, spillDirectory, lost, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return result;
+    }
+
+    private void flushUntilEmpty(Flushable reporter, long deadline) {
+        while (!isEmpty() && System.nanoTime() - deadline < 0) {
+            try {
+                reporter.flush();
+            } catch (IOException | RuntimeException e) {
+                // e.g. the reporter was closed underneath us
+                logger.log(Level.WARNING, "Failed to flush " + reporter + " on shutdown", e);
+                return;
+            }
+        }
+    }
+
+    private void resetEmpty() {
+        for (DrainingSender sender : senders) {
+            sender.empty = false;
+        }
+    }
+
+    private boolean isInFlight() {
+        for (DrainingSender sender : senders) {
+            if (sender.inFlight.get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isEmpty() {
+        for (DrainingSender sender : senders) {
+            if (!sender.empty) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownDrain{" + spillDirectory + "}";
+    }
+
+    /** Passes requests through until {@link #drain}, then counts them and spills what it cannot send. */
+    final class DrainingSender extends Sender {
+        final Sender delegate;
+        final SpillFile spillFile;
+        final AtomicLong drained = new AtomicLong();
+        final AtomicLong spilled = new AtomicLong();
+        final AtomicLong lost = new AtomicLong();
+        final AtomicLong inFlight = new AtomicLong();
+        volatile boolean empty;
+
+        DrainingSender(Sender delegate, SpillFile spillFile) {
+            this.delegate = delegate;
+            this.spillFile = spillFile;
+        }
+
+        @Override
+        public Encoding encoding() {
+            return delegate.encoding();
+        }
+
+        @Override
+        public int messageMaxBytes() {
+            return delegate.messageMaxBytes();
+        }
+
+        @Override
+        public int messageSizeInBytes(List<byte[]> encodedSpans) {
+            return delegate.messageSizeInBytes(encodedSpans);
+        }
+
+        @Override
+        public int messageSizeInBytes(int encodedSizeInBytes) {
+            return delegate.messageSizeInBytes(encodedSizeInBytes);
+        }
+
+        @Override
+        public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+            Phase phase = ShutdownDrain.this.phase;
+            if (phase == Phase.SENDING) {
+                return delegate.sendSpans(encodedSpans);
+            }
+            return new DrainCall(this, phase, encodedSpans);
+        }
+
+        void send(Phase phase, List<byte[]> encodedSpans) {
+            if (encodedSpans.isEmpty()) {
+                empty = true;
+                return;
+            }
+            empty = false;
+            if (phase == Phase.SPILLING) {
+                spill(encodedSpans);
+                return;
+            }
+            int count = encodedSpans.size();
+            inFlight.addAndGet(count);
+            try {
+                delegate.sendSpans(encodedSpans).execute();
+                drained.addAndGet(count);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.FINE, "Failed to send " + count + " spans on shutdown, spilling them", e);
+                spill(encodedSpans);
+            } finally {
+                inFlight.addAndGet(-count);
+            }
+        }
+
+        void spill(List<byte[]> encodedSpans) {
+            if (spillFile == null) {
+                lost.addAndGet(encodedSpans.size());
+                return;
+            }
+            try {
+                spillFile.append(delegate.encoding(), encodedSpans);
+                spilled.addAndGet(encodedSpans.size());
+            } catch (IOException e) {
+                lost.addAndGet(encodedSpans.size());
+                logger.log(Level.WARNING, "Failed to spill " + encodedSpans.size() + " spans to " + spillFile.file(), e);
+            }
+        }
+
+        void replay() {
+            final List<SpillFile.Claim> claims;
+            try {
+                claims = spillFile.claim();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to claim spans spilled to " + spillFile.file(), e);
+                return;
+            }
+            if (claims.isEmpty()) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (SpillFile.Claim claim : claims) {
+                        replay(claim);
+                    }
+                }
+            }, "ShutdownDrain-replay{" + spillFile.file().getName() + "}");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Sends one record per request, as each was one message; what fails goes back to the spill file, as do
+         * records of another encoding, which this sender cannot send.
+         */
+        void replay(SpillFile.Claim claim) {
+            File file = claim.file;
+            long sent = 0, kept = 0, otherEncoding = 0;
+            try {
+                List<SpillFile.Record> records = claim.read();
+                boolean failed = false;
+                for (SpillFile.Record record : records) {
+                    if (record.encoding != delegate.encoding()) {
+                        // spilled by a run configured otherwise, left for one that can send it
+                        spillFile.append(record.encoding, record.spans);
+                        otherEncoding += record.spans.size();
+                        continue;
+                    }
+                    if (!failed) {
+                        try {
+                            delegate.sendSpans(record.spans).execute();
+                            sent += record.spans.size();
+                            continue;
+                        } catch (IOException | RuntimeException e) {
+                            logger.log(Level.WARNING, "Failed to replay spans spilled to " + file + ", keeping them", e);
+                            failed = true;
+                        }
+                    }
+                    spillFile.append(record.encoding, record.spans);
+                    kept += record.spans.size();
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read spans spilled to " + file, e);
+            }
+            try {
+                claim.delete();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to delete " + file, e);
+            }
+            logger.log(Level.INFO, String.format("Replayed %d spans spilled to %s, kept %d that failed and %d of another encoding",
+                    sent, file, kept, otherEncoding));
+        }
+
+        @Override
+        public CheckResult check() {
+            return delegate.check();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public String toString() {
+            return "DrainingSender(" + delegate + ")";
+        }
+    }
+
+    static final class DrainCall extends Call.Base<Void> {
+        final DrainingSender sender;
+        final Phase phase;
+        final List<byte[]> encodedSpans;
+
+        DrainCall(DrainingSender sender, Phase phase, List<byte[]> encodedSpans) {
+            this.sender = sender;
+            this.phase = phase;
+            this.encodedSpans = encodedSpans;
+        }
+
+        @Override
+        protected Void doExecute() {
+            sender.send(phase, encodedSpans);
+            return null;
+        }
+
+        @Override
+        protected void doEnqueue(Callback<Void> callback) {
+            try {
+                callback.onSuccess(doExecute());
+            } catch (RuntimeException | Error e) {
+                callback.onError(e);
+            }
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new DrainCall(sender, phase, encodedSpans);
+        }
+    }
+}
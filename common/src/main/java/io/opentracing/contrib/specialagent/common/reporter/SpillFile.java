@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import zipkin2.codec.Encoding;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Encoded spans that could not be sent before shutdown, appended one reporter message per record:
+ * {@code 'S' 'P' version(1) encoding(1) count(4) [length(4) span]*}.
+ * <p>
+ * Records are appended under a file lock, so processes sharing the file do not interleave them. The next start
+ * renames the file to {@code <name>.<millis>-<random>.replay} under that lock, so spills of the new run go to a fresh
+ * file, and then holds the lock on every file it replays until it has emptied and deleted it, so processes starting
+ * together never replay the same file; a file left by a process that died replaying it is unlocked again.
+ *
+ * @author zhangbin
+ */
+final class SpillFile {
+
+    final static byte VERSION = 1;
+    final static String REPLAY_SUFFIX = ".replay";
+
+    static final class Record {
+        final Encoding encoding;
+        final List<byte[]> spans;
+
+        Record(Encoding encoding, List<byte[]> spans) {
+            this.encoding = encoding;
+            this.spans = spans;
+        }
+    }
+
+    /** A file waiting to be replayed, locked by this process until {@link #delete()}. */
+    static final class Claim {
+        final File file;
+        private final FileChannel channel;
+
+        Claim(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        List<Record> read() throws IOException {
+            channel.position(0L);
+            // not closed, which would close the channel and give up the lock
+            return SpillFile.read(file, Channels.newInputStream(channel));
+        }
+
+        /** Empties and deletes the file, then unlocks it: a process locking it later finds nothing to replay. */
+        void delete() throws IOException {
+            try {
+                channel.truncate(0L);
+            } finally {
+                // an open file cannot be deleted on Windows, it is deleted once closed there
+                boolean deleted = file.delete();
+                channel.close();
+                if (!deleted && !file.delete()) {
+                    throw new IOException("Failed to delete " + file);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Claim(" + file + ")";
+        }
+    }
+
+    private final File file;
+
+    SpillFile(File file) {
+        this.file = file;
+    }
+
+    File file() {
+        return file;
+    }
+
+    synchronized void append(Encoding encoding, List<byte[]> spans) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('S');
+        out.writeByte('P');
+        out.writeByte(VERSION);
+        out.writeByte(encoding.ordinal());
+        out.writeInt(spans.size());
+        for (byte[] span : spans) {
+            out.writeInt(span.length);
+            out.write(span);
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        try (FileOutputStream stream = new FileOutputStream(file, true);
+             FileChannel channel = stream.getChannel()) {
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Moves what earlier runs spilled out of the way and locks every file waiting to be replayed that no other
+     * process has, oldest first.
+     */
+    List<Claim> claim() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null || !dir.isDirectory()) {
+            return Collections.emptyList();
+        }
+        moveAside(dir);
+        final String prefix = file.getName() + ".";
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(REPLAY_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        List<Claim> claims = new ArrayList<>(files.length);
+        for (File replay : files) {
+            Claim claim = tryClaim(replay);
+            if (claim != null) {
+                claims.add(claim);
+            }
+        }
+        return claims;
+    }
+
+    /** Renames the file under its lock, so no record is cut in half; the random part keeps renames apart. */
+    private void moveAside(File dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                File renamed = new File(dir, file.getName() + "." + System.currentTimeMillis() + "-"
+                        + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + REPLAY_SUFFIX);
+                if (!file.renameTo(renamed) && file.exists()) {
+                    throw new IOException("Failed to rename " + file + " to " + renamed);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (NoSuchFileException | OverlappingFileLockException e) {
+            // nothing spilled, or another process or instance is moving it aside
+        }
+    }
+
+    /** Returns null when another process, or another instance in this one, has the file or it is gone. */
+    private static Claim tryClaim(File replay) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(replay.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.tryLock() != null) {
+                return new Claim(replay, channel);
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            // taken or replayed since it was listed
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was read
+            }
+        }
+        return null;
+    }
+
+    /** Reads every complete record; a record cut short by a crash while spilling ends the file. */
+    static List<Record> read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(file, in);
+        }
+    }
+
+    private static List<Record> read(File file, InputStream stream) throws IOException {
+        List<Record> records = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            while (true) {
+                int first = in.read();
+                if (first == -1) {
+                    return records;
+                }
+                if (first != 'S' || in.readUnsignedByte() != 'P' || in.readUnsignedByte() != VERSION) {
+                    throw new IOException("Invalid spill file " + file);
+                }
+                int encoding = in.readUnsignedByte();
+                int count = in.readInt();
+                if (encoding >= Encoding.values().length || count < 0) {
+                    throw new IOException("Invalid spill file " + file);
+                }
+                List<byte[]> spans = new ArrayList<>(Math.min(count, 1024));
+                for (int i = 0; i < count; i++) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid spill file " + file);
+                    }
+                    byte[] span = new byte[length];
+                    in.readFully(span);
+                    spans.add(span);
+                }
+                records.add(new Record(Encoding.values()[encoding], spans));
+            }
+        } catch (EOFException e) {
+            return records;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SpillFile(" + file + ")";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.resource;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+
+/**
+ * Tags a finished span with the CPU time and bytes allocated by its thread since the span was created, as read
+ * by {@link ThreadResourcePropagationFactory}.
+ * <p>
+ * The counters are per thread, so spans finished on another thread than the one that created them are left
+ * untagged rather than charged with unrelated work.
+ *
+ * @author zhangbin
+ */
+public final class ThreadResourceHandler extends FinishedSpanHandler {
+
+    public final static String CPU_TIME_TAG = "thread.cpu_time_ns";
+    public final static String ALLOCATED_BYTES_TAG = "thread.allocated_bytes";
+
+    public static ThreadResourceHandler create() {
+        return new ThreadResourceHandler();
+    }
+
+    private ThreadResourceHandler() {
+    }
+
+    @Override
+    public boolean handle(TraceContext context, MutableSpan span) {
+        ThreadResourceUsage usage = context.findExtra(ThreadResourceUsage.class);
+        if (usage == null || usage.spanId != context.spanId()) {
+            return true;
+        }
+        Thread thread = Thread.currentThread();
+        if (usage.threadId != thread.getId()) {
+            return true;
+        }
+        long cpuTimeNanos = ThreadResources.cpuTimeNanos();
+        long allocatedBytes = ThreadResources.allocatedBytes(thread);
+        if (usage.cpuTimeNanos >= 0 && cpuTimeNanos >= 0) {
+            span.tag(CPU_TIME_TAG, Long.toString(cpuTimeNanos - usage.cpuTimeNanos));
+        }
+        if (usage.allocatedBytes >= 0 && allocatedBytes >= 0) {
+            span.tag(ALLOCATED_BYTES_TAG, Long.toString(allocatedBytes - usage.allocatedBytes));
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadResourceHandler";
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.resource;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wraps a {@link Propagation.Factory} to read the creating thread's CPU time and allocated bytes when a sampled
+ * span's context is created. {@link ThreadResourceHandler} turns the readings into tags when the span finishes.
+ * <p>
+ * Unsampled contexts are returned as they are, without touching {@link java.lang.management.ThreadMXBean}.
+ *
+ * @author zhangbin
+ */
+public final class ThreadResourcePropagationFactory extends Propagation.Factory {
+
+    /** Returns {@code delegate} itself when the JVM offers neither counter. */
+    public static Propagation.Factory create(Propagation.Factory delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        return ThreadResources.supported() ? new ThreadResourcePropagationFactory(delegate) : delegate;
+    }
+
+    private final Propagation.Factory delegate;
+
+    private ThreadResourcePropagationFactory(Propagation.Factory delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean supportsJoin() {
+        return delegate.supportsJoin();
+    }
+
+    @Override
+    public boolean requires128BitTraceId() {
+        return delegate.requires128BitTraceId();
+    }
+
+    @Override
+    public <K> Propagation<K> create(Propagation.KeyFactory<K> keyFactory) {
+        return delegate.create(keyFactory);
+    }
+
+    /**
+     * Brave also decorates existing contexts, e.g. for {@code currentSpan()}, so a context that already carries
+     * its own reading is left alone.
+     */
+    @Override
+    public TraceContext decorate(TraceContext context) {
+        TraceContext decorated = delegate.decorate(context);
+        if (!Boolean.TRUE.equals(decorated.sampled())) {
+            return decorated;
+        }
+        List<Object> extra = decorated.extra();
+        int index = -1;
+        for (int i = 0; i < extra.size(); i++) {
+            if (extra.get(i) instanceof ThreadResourceUsage) {
+                if (((ThreadResourceUsage) extra.get(i)).spanId == decorated.spanId()) {
+                    return decorated;
+                }
+                index = i;
+                break;
+            }
+        }
+        List<Object> replaced = new ArrayList<>(extra.size() + 1);
+        replaced.addAll(extra);
+        ThreadResourceUsage usage = new ThreadResourceUsage(decorated.spanId(), Thread.currentThread());
+        if (index == -1) {
+            replaced.add(usage);
+        } else {
+            replaced.set(index, usage);
+        }
+        return decorated.toBuilder().extra(Collections.unmodifiableList(replaced)).build();
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadResourcePropagationFactory(" + delegate + ")";
+    }
+}
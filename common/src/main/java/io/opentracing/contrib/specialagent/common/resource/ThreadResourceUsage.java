@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.resource;
+
+import brave.propagation.TraceContext;
+
+/**
+ * Thread counters read when a sampled span was created, carried in {@link TraceContext#extra()}.
+ * <p>
+ * Brave copies extra from parent to child, so a reading is only valid for the span id it was taken for; a child
+ * replaces its parent's reading with its own.
+ *
+ * @author zhangbin
+ */
+final class ThreadResourceUsage {
+
+    final long spanId;
+    final long threadId;
+    final long cpuTimeNanos;
+    final long allocatedBytes;
+
+    ThreadResourceUsage(long spanId, Thread thread) {
+        this.spanId = spanId;
+        this.threadId = thread.getId();
+        this.allocatedBytes = ThreadResources.allocatedBytes(thread);
+        this.cpuTimeNanos = ThreadResources.cpuTimeNanos();
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadResourceUsage";
+    }
+}
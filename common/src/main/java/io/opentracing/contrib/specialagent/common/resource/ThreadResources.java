@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.resource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread through {@link ThreadMXBean}. Either reading is
+ * -1 when the JVM does not support or has disabled it.
+ *
+ * @author zhangbin
+ */
+final class ThreadResources {
+
+    private final static Logger logger = Logger.getLogger(ThreadResources.class.getName());
+
+    private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private final static com.sun.management.ThreadMXBean ALLOCATIONS = allocations(THREADS);
+    final static boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private ThreadResources() {
+    }
+
+    private static com.sun.management.ThreadMXBean allocations(ThreadMXBean threads) {
+        try {
+            if (threads instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+                return (com.sun.management.ThreadMXBean) threads;
+            }
+        } catch (LinkageError e) {
+            logger.log(Level.FINE, "Thread allocation counters are not available", e);
+        }
+        return null;
+    }
+
+    static long cpuTimeNanos() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : -1L;
+    }
+
+    static long allocatedBytes(Thread thread) {
+        return ALLOCATIONS != null ? ALLOCATIONS.getThreadAllocatedBytes(thread.getId()) : -1L;
+    }
+
+    static boolean supported() {
+        return CPU_TIME_SUPPORTED || ALLOCATIONS != null;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.sampler.Sampler;
+
+/**
+ * The sampler given to Brave when a wrapping tracer decides on new traces itself.
+ * <p>
+ * The OpenTracing bridge only takes a decision as {@link io.opentracing.tag.Tags#SAMPLING_PRIORITY}, which it also
+ * reports as a tag of the span. Instead, the wrapping tracer sets its decision on this sampler for the duration of
+ * {@code start()}, and Brave asks this sampler when that start begins a new trace. Without a decision the delegate
+ * decides.
+ *
+ * @author zhangbin
+ */
+public final class DecidedSampler extends Sampler {
+
+    public static DecidedSampler create(Sampler delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        return new DecidedSampler(delegate);
+    }
+
+    private final Sampler delegate;
+    private final ThreadLocal<Boolean> decision = new ThreadLocal<>();
+
+    private DecidedSampler(Sampler delegate) {
+        this.delegate = delegate;
+    }
+
+    public Sampler delegate() {
+        return delegate;
+    }
+
+    @Override
+    public boolean isSampled(long traceId) {
+        Boolean decided = decision.get();
+        return decided != null ? decided : delegate.isSampled(traceId);
+    }
+
+    /** True while an outer tracer's decision is set, which inner tracers leave alone. */
+    boolean hasDecision() {
+        return decision.get() != null;
+    }
+
+    /** Decides the trace the current thread starts next, until {@link #clear()}. */
+    void decide(boolean sampled) {
+        decision.set(sampled);
+    }
+
+    void clear() {
+        decision.remove();
+    }
+
+    @Override
+    public String toString() {
+        return "DecidedSampler{" + delegate + "}";
+    }
+}
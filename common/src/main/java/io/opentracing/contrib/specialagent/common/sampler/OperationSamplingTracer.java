@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.sampler.Sampler;
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.tag.Tag;
+import io.opentracing.tag.Tags;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Applies the per-operation rules of a {@link RemoteSampler} to an OpenTracing tracer.
+ * <p>
+ * Brave samples new traces by trace id alone, so the decision for an operation with its own rule is made when
+ * its root span starts and handed to Brave through the tracing's {@link DecidedSampler}, which leaves no tag on
+ * the span. Spans with a parent keep their parent's decision, and operations without a rule are built by the
+ * delegate as they are.
+ *
+ * @author zhangbin
+ */
+public final class OperationSamplingTracer implements Tracer {
+
+    /** @param decidedSampler the sampler the delegate's tracing was built with */
+    public static Tracer create(Tracer delegate, RemoteSampler sampler, DecidedSampler decidedSampler) {
+        if (delegate == null || sampler == null || decidedSampler == null) {
+            throw new NullPointerException("delegate == null || sampler == null || decidedSampler == null");
+        }
+        return new OperationSamplingTracer(delegate, sampler, decidedSampler);
+    }
+
+    private final Tracer delegate;
+    private final RemoteSampler sampler;
+    private final DecidedSampler decidedSampler;
+
+    private OperationSamplingTracer(Tracer delegate, RemoteSampler sampler, DecidedSampler decidedSampler) {
+        this.delegate = delegate;
+        this.sampler = sampler;
+        this.decidedSampler = decidedSampler;
+    }
+
+    @Override
+    public SpanBuilder buildSpan(String operationName) {
+        SpanBuilder builder = delegate.buildSpan(operationName);
+        Sampler operationSampler = sampler.operationSampler(operationName);
+        return operationSampler != null ? new RootSamplingSpanBuilder(builder, operationSampler) : builder;
+    }
+
+    @Override
+    public ScopeManager scopeManager() {
+        return delegate.scopeManager();
+    }
+
+    @Override
+    public Span activeSpan() {
+        return delegate.activeSpan();
+    }
+
+    @Override
+    public Scope activateSpan(Span span) {
+        return delegate.activateSpan(span);
+    }
+
+    @Override
+    public <C> void inject(SpanContext spanContext, Format<C> format, C carrier) {
+        delegate.inject(spanContext, format, carrier);
+    }
+
+    @Override
+    public <C> SpanContext extract(Format<C> format, C carrier) {
+        return delegate.extract(format, carrier);
+    }
+
+    /** Closes the delegate and stops polling for strategies. */
+    @Override
+    public void close() {
+        try {
+            delegate.close();
+        } finally {
+            sampler.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OperationSamplingTracer{" + delegate + ", " + sampler + "}";
+    }
+
+    /** Decides at {@link #start()}, once it is known whether the span has a parent. */
+    final class RootSamplingSpanBuilder implements SpanBuilder {
+        private final SpanBuilder builder;
+        private final Sampler operationSampler;
+        private boolean hasParent;
+        private boolean ignoreActiveSpan;
+        private boolean hasPriority;
+
+        RootSamplingSpanBuilder(SpanBuilder builder, Sampler operationSampler) {
+            this.builder = builder;
+            this.operationSampler = operationSampler;
+        }
+
+        @Override
+        public SpanBuilder asChildOf(SpanContext parent) {
+            hasParent |= parent != null;
+            builder.asChildOf(parent);
+            return this;
+        }
+
+        @Override
+        public SpanBuilder asChildOf(Span parent) {
+            hasParent |= parent != null;
+            builder.asChildOf(parent);
+            return this;
+        }
+
+        @Override
+        public SpanBuilder addReference(String referenceType, SpanContext referencedContext) {
+            hasParent |= referencedContext != null;
+            builder.addReference(referenceType, referencedContext);
+            return this;
+        }
+
+        @Override
+        public SpanBuilder ignoreActiveSpan() {
+            ignoreActiveSpan = true;
+            builder.ignoreActiveSpan();
+            return this;
+        }
+
+        @Override
+        public SpanBuilder withTag(String key, String value) {
+            hasPriority |= Tags.SAMPLING_PRIORITY.getKey().equals(key);
+            builder.withTag(key, value);
+            return this;
+        }
+
+        @Override
+        public SpanBuilder withTag(String key, boolean value) {
+            builder.withTag(key, value);
+            return this;
+        }
+
+        @Override
+        public SpanBuilder withTag(String key, Number value) {
+            hasPriority |= Tags.SAMPLING_PRIORITY.getKey().equals(key);
+            builder.withTag(key, value);
+            return this;
+        }
+
+        @Override
+        public <T> SpanBuilder withTag(Tag<T> tag, T value) {
+            hasPriority |= Tags.SAMPLING_PRIORITY.getKey().equals(tag.getKey());
+            builder.withTag(tag, value);
+            return this;
+        }
+
+        @Override
+        public SpanBuilder withStartTimestamp(long microseconds) {
+            builder.withStartTimestamp(microseconds);
+            return this;
+        }
+
+        @Override
+        @Deprecated
+        public Span startManual() {
+            boolean decided = decide();
+            try {
+                return builder.startManual();
+            } finally {
+                if (decided) {
+                    decidedSampler.clear();
+                }
+            }
+        }
+
+        @Override
+        public Span start() {
+            boolean decided = decide();
+            try {
+                return builder.start();
+            } finally {
+                if (decided) {
+                    decidedSampler.clear();
+                }
+            }
+        }
+
+        @Override
+        @Deprecated
+        public Scope startActive(boolean finishSpanOnClose) {
+            boolean decided = decide();
+            try {
+                return builder.startActive(finishSpanOnClose);
+            } finally {
+                if (decided) {
+                    decidedSampler.clear();
+                }
+            }
+        }
+
+        /**
+         * Returns true if the decision was set and has to be cleared. An explicit priority set by the caller wins
+         * over the strategy, and so does a decision of an outer tracer.
+         */
+        private boolean decide() {
+            if (hasParent || hasPriority || decidedSampler.hasDecision()
+                    || (!ignoreActiveSpan && delegate.activeSpan() != null)) {
+                return false;
+            }
+            decidedSampler.decide(operationSampler.isSampled(ThreadLocalRandom.current().nextLong()));
+            return true;
+        }
+    }
+}
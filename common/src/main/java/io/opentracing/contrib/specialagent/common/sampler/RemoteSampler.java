@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.sampler.Sampler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples with a {@link SamplingStrategy} polled from an HTTP endpoint, so sampling can be tuned centrally.
+ * <p>
+ * The endpoint is called with {@code ?service=<service name>} and answers with a {@link SamplingStrategy}
+ * properties document. Every new document that parses is written to a local cache file, which the next start
+ * loads before its first fetch. Until either succeeds, the local fallback sampler decides.
+ * <p>
+ * Strategies are immutable and replaced by a single volatile write, so sampling never locks; an unchanged
+ * document is not replaced, which keeps the state of its rate limiters.
+ *
+ * @author zhangbin
+ */
+public final class RemoteSampler extends Sampler implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(RemoteSampler.class.getName());
+
+    final static int TIMEOUT_MILLIS = 5000;
+
+    public static Builder newBuilder(String url) {
+        return new Builder(url);
+    }
+
+    public static final class Builder {
+        private final String url;
+        private String serviceName;
+        private Sampler fallback = Sampler.ALWAYS_SAMPLE;
+        private long refreshIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+        private File cacheFile;
+
+        Builder(String url) {
+            if (url == null || url.isEmpty()) {
+                throw new IllegalArgumentException("url is required");
+            }
+            this.url = url;
+        }
+
+        public Builder serviceName(String serviceName) {
+            this.serviceName = serviceName;
+            return this;
+        }
+
+        /** Decides until a strategy has been fetched or loaded from the cache. */
+        public Builder fallback(Sampler fallback) {
+            this.fallback = fallback;
+            return this;
+        }
+
+        public Builder refreshInterval(long refreshInterval, TimeUnit unit) {
+            this.refreshIntervalNanos = unit.toNanos(refreshInterval);
+            return this;
+        }
+
+        /** Where the last good strategy is kept; null disables the cache. */
+        public Builder cacheFile(File cacheFile) {
+            this.cacheFile = cacheFile;
+            return this;
+        }
+
+        /** Loads the cached strategy, if any, and starts polling in the background. */
+        public RemoteSampler build() {
+            if (refreshIntervalNanos <= 0) {
+                throw new IllegalArgumentException("refreshInterval must be positive");
+            }
+            String scheme = url.indexOf(':') > 0 ? url.substring(0, url.indexOf(':')) : "";
+            if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+                throw new IllegalArgumentException("Invalid url " + url + ", expected http or https");
+            }
+            RemoteSampler sampler = new RemoteSampler(this);
+            sampler.start();
+            return sampler;
+        }
+    }
+
+    private final URL url;
+    private final String serviceName;
+    private final Sampler fallback;
+    private final long refreshIntervalNanos;
+    private final File cacheFile;
+    private final ScheduledExecutorService poller;
+
+    private volatile SamplingStrategy strategy;
+    // only touched by the polling thread, or by the constructor before it starts
+    private byte[] document;
+    private String etag;
+
+    private RemoteSampler(Builder builder) {
+        try {
+            String query = builder.serviceName != null
+                    ? (builder.url.indexOf('?') == -1 ? "?" : "&") + "service=" + URLEncoder.encode(builder.serviceName, "UTF-8")
+                    : "";
+            this.url = new URL(builder.url + query);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid url " + builder.url, e);
+        }
+        this.serviceName = builder.serviceName;
+        this.fallback = builder.fallback;
+        this.refreshIntervalNanos = builder.refreshIntervalNanos;
+        this.cacheFile = builder.cacheFile;
+        this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RemoteSampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void start() {
+        loadCache();
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // anything thrown here would cancel the polling for good
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to refresh the sampling strategy from " + url, e);
+                }
+            }
+        }, 0, refreshIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean isSampled(long traceId) {
+        SamplingStrategy current = strategy;
+        return current != null ? current.defaultSampler.isSampled(traceId) : fallback.isSampled(traceId);
+    }
+
+    /** Returns the sampler of {@code operation} in the current strategy, or null if it has no rule of its own. */
+    public Sampler operationSampler(String operation) {
+        SamplingStrategy current = strategy;
+        return current != null && operation != null ? current.operations.get(operation) : null;
+    }
+
+    /** Returns true once a strategy has been fetched or loaded from the cache. */
+    public boolean hasStrategy() {
+        return strategy != null;
+    }
+
+    /**
+     * Fetches the strategy once; returns true if the endpoint answered with a usable or unchanged document. Only
+     * writers synchronize, samplers read the volatile strategy.
+     */
+    synchronized boolean refresh() {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return true;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                logger.log(Level.WARNING, "Sampling strategy request to " + url + " failed with status " + status);
+                return false;
+            }
+            byte[] fetched;
+            try (InputStream in = connection.getInputStream()) {
+                fetched = readFully(in);
+            }
+            // the cache already holds the current document, be it loaded from it or written before
+            boolean changed = document == null || !Arrays.equals(document, fetched);
+            if (apply(fetched)) {
+                etag = connection.getHeaderField("ETag");
+                if (changed) {
+                    writeCache(fetched);
+                }
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to fetch the sampling strategy from " + url + ": " + e);
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private boolean apply(byte[] fetched) {
+        if (document != null && Arrays.equals(document, fetched)) {
+            return true;
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(new ByteArrayInputStream(fetched));
+            strategy = SamplingStrategy.parse(properties, serviceName, fallback);
+            document = fetched;
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            // keep sampling with the last good strategy
+            logger.log(Level.WARNING, "Ignoring invalid sampling strategy from " + url + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void loadCache() {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return;
+        }
+        try {
+            if (apply(Files.readAllBytes(cacheFile.toPath()))) {
+                logger.info("Loaded cached sampling strategy " + cacheFile);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the cached sampling strategy " + cacheFile + ": " + e);
+        }
+    }
+
+    /** Writes next to the cache and renames, so a crash never leaves a half written strategy behind. */
+    private void writeCache(byte[] fetched) {
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            File directory = cacheFile.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            File temp = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+            Files.write(temp.toPath(), fetched);
+            try {
+                Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to cache the sampling strategy in " + cacheFile + ": " + e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /** Stops polling; the current strategy keeps deciding. */
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteSampler{" + url + ", " + (strategy != null ? strategy : "fallback=" + fallback) + "}";
+    }
+}
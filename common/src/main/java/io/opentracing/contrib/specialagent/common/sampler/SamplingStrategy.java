@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.sampler.BoundarySampler;
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * An immutable sampling strategy for one service, parsed from a properties document:
+ * <pre>
+ * default.probability=0.001
+ * operation.GET\ /health.probability=0
+ * service.orders.default.rate_limit=50
+ * service.orders.operation.checkout.probability=1
+ * </pre>
+ * Each rule is either a {@code probability} (0 to 1) or a {@code rate_limit} in traces per second; when both are
+ * given the rate limit wins. {@code service.<name>.} rules override the unscoped ones for that service, so one
+ * document can be served to every service.
+ *
+ * @author zhangbin
+ */
+final class SamplingStrategy {
+
+    private final static String DEFAULT = "default.";
+    private final static String OPERATION = "operation.";
+    private final static String PROBABILITY = "probability";
+    private final static String RATE_LIMIT = "rate_limit";
+
+    final Sampler defaultSampler;
+    final Map<String, Sampler> operations;
+
+    private SamplingStrategy(Sampler defaultSampler, Map<String, Sampler> operations) {
+        this.defaultSampler = defaultSampler;
+        this.operations = operations;
+    }
+
+    /**
+     * @param fallback used for the service default when the document has none
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    static SamplingStrategy parse(Properties document, String serviceName, Sampler fallback) {
+        Map<String, Rule> rules = new HashMap<>();
+        String servicePrefix = serviceName != null ? "service." + serviceName + "." : null;
+        // unscoped rules first, so the service's own rules overwrite them
+        for (String key : document.stringPropertyNames()) {
+            if (!key.startsWith("service.")) {
+                addRule(rules, key, key, document.getProperty(key));
+            }
+        }
+        if (servicePrefix != null) {
+            for (String key : document.stringPropertyNames()) {
+                if (key.startsWith(servicePrefix)) {
+                    addRule(rules, key, key.substring(servicePrefix.length()), document.getProperty(key));
+                }
+            }
+        }
+
+        Sampler defaultSampler = fallback;
+        Map<String, Sampler> operations = new HashMap<>();
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            Sampler sampler = entry.getValue().toSampler(entry.getKey());
+            if (entry.getKey() == null) {
+                defaultSampler = sampler;
+            } else {
+                operations.put(entry.getKey(), sampler);
+            }
+        }
+        return new SamplingStrategy(defaultSampler,
+                operations.isEmpty() ? Collections.<String, Sampler>emptyMap() : operations);
+    }
+
+    /** Ignores keys that are not rules, so documents can carry comments or future settings. */
+    private static void addRule(Map<String, Rule> rules, String key, String rule, String value) {
+        String operation;
+        String setting;
+        if (rule.startsWith(DEFAULT)) {
+            operation = null;
+            setting = rule.substring(DEFAULT.length());
+        } else if (rule.startsWith(OPERATION)) {
+            int dot = rule.lastIndexOf('.');
+            if (dot <= OPERATION.length()) {
+                return;
+            }
+            operation = rule.substring(OPERATION.length(), dot);
+            setting = rule.substring(dot + 1);
+        } else {
+            return;
+        }
+        if (!PROBABILITY.equals(setting) && !RATE_LIMIT.equals(setting)) {
+            return;
+        }
+        Rule existing = rules.get(operation);
+        if (existing == null) {
+            rules.put(operation, existing = new Rule());
+        }
+        try {
+            if (PROBABILITY.equals(setting)) {
+                existing.probability = Float.valueOf(value.trim());
+            } else {
+                existing.rateLimit = Integer.valueOf(value.trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid sampling rule " + key + "=" + value);
+        }
+    }
+
+    private final static class Rule {
+        Float probability;
+        Integer rateLimit;
+
+        Sampler toSampler(String operation) {
+            if (rateLimit != null) {
+                return RateLimitingSampler.create(rateLimit);
+            }
+            if (probability == null || probability < 0F || probability > 1F) {
+                throw new IllegalArgumentException("Invalid sampling probability " + probability + " for "
+                        + (operation != null ? "operation " + operation : "default"));
+            }
+            return BoundarySampler.create(probability);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingStrategy{default=" + defaultSampler + ", operations=" + operations.keySet() + "}";
+    }
+}
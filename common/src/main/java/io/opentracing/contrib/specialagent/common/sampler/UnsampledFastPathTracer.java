@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.opentracing.BraveSpanContext;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import io.opentracing.References;
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.tag.Tag;
+import io.opentracing.tag.Tags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps unsampled spans away from the OpenTracing bridge, which otherwise allocates a builder with a tag map, a
+ * Brave span, its wrapper and a scope for each of them.
+ * <p>
+ * The sampling decision is made when a span starts, before anything is built: a span is unsampled when its parent
+ * is, be it explicit or the active span, and a new trace is unsampled when the sampler says so for its operation.
+ * Unsampled spans are {@link UnsampledSpan}s, shared by the whole trace, and are made active in a thread local
+ * slot of this tracer's {@link ScopeManager}, so their tags, logs and scopes cost nothing. A new trace gets its
+ * trace id before the sampler is asked, so the sampler decides on it, and when that is unsampled the trace keeps
+ * the id without the delegate building anything. Everything else goes to the delegate, including the sampled
+ * traces this tracer decided on, whose decision reaches Brave through the tracing's {@link DecidedSampler}; Brave
+ * gives those ids of its own.
+ * <p>
+ * An active unsampled span is current in Brave's {@link CurrentTraceContext} as well, so executors wrapped by it
+ * carry the trace to other threads, where new spans join it unsampled, and code instrumented with Brave directly
+ * sees it as parent.
+ *
+ * @author zhangbin
+ */
+public final class UnsampledFastPathTracer implements Tracer {
+
+    /** @param decidedSampler the sampler the delegate's tracing was built with */
+    public static Tracer create(Tracer delegate, CurrentTraceContext currentTraceContext, DecidedSampler decidedSampler) {
+        if (delegate == null || currentTraceContext == null || decidedSampler == null) {
+            throw new NullPointerException("delegate == null || currentTraceContext == null || decidedSampler == null");
+        }
+        return new UnsampledFastPathTracer(delegate, currentTraceContext, decidedSampler);
+    }
+
+    private final Tracer delegate;
+    private final CurrentTraceContext currentTraceContext;
+    private final DecidedSampler decidedSampler;
+    private final Sampler sampler;
+    private final FastPathScopeManager scopeManager;
+
+    private UnsampledFastPathTracer(Tracer delegate, CurrentTraceContext currentTraceContext,
+                                    DecidedSampler decidedSampler) {
+        this.delegate = delegate;
+        this.currentTraceContext = currentTraceContext;
+        this.decidedSampler = decidedSampler;
+        this.sampler = decidedSampler.delegate();
+        this.scopeManager = new FastPathScopeManager(delegate.scopeManager(), currentTraceContext);
+    }
+
+    @Override
+    public SpanBuilder buildSpan(String operationName) {
+        return new FastPathSpanBuilder(operationName);
+    }
+
+    @Override
+    public ScopeManager scopeManager() {
+        return scopeManager;
+    }
+
+    @Override
+    public Span activeSpan() {
+        return scopeManager.activeSpan();
+    }
+
+    @Override
+    public Scope activateSpan(Span span) {
+        return scopeManager.activate(span);
+    }
+
+    @Override
+    public <C> void inject(SpanContext spanContext, Format<C> format, C carrier) {
+        if (spanContext instanceof UnsampledContext) {
+            // only the delegate's own contexts can be injected
+            spanContext = ((UnsampledContext) spanContext).ids();
+        }
+        delegate.inject(spanContext, format, carrier);
+    }
+
+    @Override
+    public <C> SpanContext extract(Format<C> format, C carrier) {
+        return delegate.extract(format, carrier);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return "UnsampledFastPathTracer{" + delegate + "}";
+    }
+
+    /**
+     * Context of an unsampled trace that the delegate did not build: a new trace decided unsampled here, or one
+     * carried from another thread by Brave's current trace context. The delegate's view of it, needed to inject
+     * it, is made the first time and kept.
+     */
+    final class UnsampledContext implements SpanContext {
+        final UnsampledSpan span = new UnsampledSpan(this);
+        final TraceContext context;
+        private volatile SpanContext ids;
+
+        UnsampledContext(TraceContext context) {
+            this.context = context;
+        }
+
+        SpanContext ids() {
+            SpanContext result = ids;
+            if (result == null) {
+                // the bridge wraps what is current in Brave, its contexts cannot be created otherwise
+                CurrentTraceContext.Scope scope = currentTraceContext.newScope(context);
+                try {
+                    ids = result = delegate.activeSpan().context();
+                } finally {
+                    scope.close();
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String toTraceId() {
+            return context.traceIdString();
+        }
+
+        @Override
+        public String toSpanId() {
+            return context.spanIdString();
+        }
+
+        @Override
+        public Iterable<Map.Entry<String, String>> baggageItems() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String toString() {
+            return "UnsampledSpanContext{" + context + "}";
+        }
+    }
+
+    /** A root span decided unsampled, with the trace id the sampler decided on. */
+    private Span unsampledRoot(long traceId) {
+        return new UnsampledContext(TraceContext.newBuilder().traceId(traceId).spanId(traceId).sampled(false).build()).span;
+    }
+
+    static long nextTraceId() {
+        long traceId;
+        do {
+            traceId = ThreadLocalRandom.current().nextLong();
+        } while (traceId == 0L);
+        return traceId;
+    }
+
+    /** The Brave context behind a span context of an unsampled span, or null when there is none. */
+    static TraceContext traceContext(SpanContext context) {
+        if (context instanceof UnsampledContext) {
+            return ((UnsampledContext) context).context;
+        }
+        return context instanceof BraveSpanContext ? ((BraveSpanContext) context).unwrap() : null;
+    }
+
+    /** True when {@code context} is a Brave context known to be unsampled. */
+    static boolean isUnsampled(SpanContext context) {
+        if (!(context instanceof BraveSpanContext)) {
+            return false;
+        }
+        TraceContext traceContext = ((BraveSpanContext) context).unwrap();
+        return traceContext != null && Boolean.FALSE.equals(traceContext.sampled());
+    }
+
+    /** Sampling priority of a tag value, or -1 when it is not a number. */
+    static int priority(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Only keeps what the delegate needs should the span turn out sampled. The first tags live in fields, so an
+     * unsampled span allocates nothing beyond this builder.
+     */
+    final class FastPathSpanBuilder implements SpanBuilder {
+        final static int INLINE_TAGS = 4;
+
+        private final String operationName;
+        private Span parentSpan;
+        private SpanContext parent;
+        private boolean ignoreActiveSpan;
+        private long startMicros;
+        private int priority = -1;
+        private boolean sampledRoot;
+        private int tagCount;
+        private Object key0, value0, key1, value1, key2, value2, key3, value3;
+        private List<Object> moreTags;
+
+        FastPathSpanBuilder(String operationName) {
+            this.operationName = operationName;
+        }
+
+        @Override
+        public SpanBuilder asChildOf(SpanContext parent) {
+            return addReference(References.CHILD_OF, parent);
+        }
+
+        @Override
+        public SpanBuilder asChildOf(Span parent) {
+            // like Brave, the first parent wins
+            if (parent != null && this.parentSpan == null && this.parent == null) {
+                this.parentSpan = parent;
+            }
+            return this;
+        }
+
+        @Override
+        public SpanBuilder addReference(String referenceType, SpanContext referencedContext) {
+            if (referencedContext != null && parentSpan == null && parent == null
+                    && (References.CHILD_OF.equals(referenceType) || References.FOLLOWS_FROM.equals(referenceType))) {
+                this.parent = referencedContext;
+            }
+            return this;
+        }
+
+        @Override
+        public SpanBuilder ignoreActiveSpan() {
+            ignoreActiveSpan = true;
+            return this;
+        }
+
+        @Override
+        public SpanBuilder withTag(String key, String value) {
+            return tag(key, key, value);
+        }
+
+        @Override
+        public SpanBuilder withTag(String key, boolean value) {
+            return tag(key, key, value);
+        }
+
+        @Override
+        public SpanBuilder withTag(String key, Number value) {
+            return tag(key, key, value);
+        }
+
+        @Override
+        public <T> SpanBuilder withTag(Tag<T> tag, T value) {
+            return tag(tag.getKey(), tag, value);
+        }
+
+        @Override
+        public SpanBuilder withStartTimestamp(long microseconds) {
+            startMicros = microseconds;
+            return this;
+        }
+
+        @Override
+        @Deprecated
+        public Span startManual() {
+            return start();
+        }
+
+        @Override
+        public Span start() {
+            Span unsampled = unsampled();
+            return unsampled != null ? unsampled : startDelegate();
+        }
+
+        @Override
+        @Deprecated
+        public Scope startActive(boolean finishSpanOnClose) {
+            return scopeManager.activate(start(), finishSpanOnClose);
+        }
+
+        private SpanBuilder tag(String name, Object key, Object value) {
+            if (Tags.SAMPLING_PRIORITY.getKey().equals(name)) {
+                priority = priority(value);
+            }
+            switch (tagCount++) {
+                case 0:
+                    key0 = key;
+                    value0 = value;
+                    break;
+                case 1:
+                    key1 = key;
+                    value1 = value;
+                    break;
+                case 2:
+                    key2 = key;
+                    value2 = value;
+                    break;
+                case 3:
+                    key3 = key;
+                    value3 = value;
+                    break;
+                default:
+                    if (moreTags == null) {
+                        moreTags = new ArrayList<>();
+                    }
+                    moreTags.add(key);
+                    moreTags.add(value);
+            }
+            return this;
+        }
+
+        /** Returns the span to use when it is known to be unsampled, null when the delegate has to build it. */
+        private Span unsampled() {
+            if (parentSpan instanceof UnsampledSpan) {
+                return parentSpan;
+            }
+            SpanContext parent = parentSpan != null ? parentSpan.context() : this.parent;
+            if (parent instanceof UnsampledContext) {
+                return ((UnsampledContext) parent).span;
+            } else if (parent != null) {
+                return isUnsampled(parent) ? new UnsampledSpan(parent) : null;
+            }
+            if (!ignoreActiveSpan) {
+                Span active = scopeManager.activeUnsampledSpan();
+                if (active != null) {
+                    return active;
+                }
+                TraceContext current = currentTraceContext.get();
+                if (current != null) {
+                    // a Brave span is in scope: an unsampled one, say carried here from another thread, is joined
+                    // here, others by the delegate
+                    return Boolean.FALSE.equals(current.sampled()) ? new UnsampledContext(current).span : null;
+                }
+            }
+            // a new trace, where an explicit priority wins like it does in the bridge
+            long traceId = nextTraceId();
+            if (priority != -1) {
+                return priority > 0 ? null : unsampledRoot(traceId);
+            }
+            Sampler operationSampler = sampler instanceof RemoteSampler
+                    ? ((RemoteSampler) sampler).operationSampler(operationName) : null;
+            Sampler rootSampler = operationSampler != null ? operationSampler : sampler;
+            if (rootSampler.isSampled(traceId)) {
+                sampledRoot = true;
+                return null;
+            }
+            return unsampledRoot(traceId);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Span startDelegate() {
+            SpanBuilder builder = delegate.buildSpan(operationName);
+            if (parentSpan != null) {
+                builder.asChildOf(parentSpan);
+            } else if (parent != null) {
+                builder.asChildOf(parent);
+            }
+            if (ignoreActiveSpan) {
+                builder.ignoreActiveSpan();
+            }
+            if (startMicros != 0L) {
+                builder.withStartTimestamp(startMicros);
+            }
+            int inline = Math.min(tagCount, INLINE_TAGS);
+            Object[] keys = {key0, key1, key2, key3};
+            Object[] values = {value0, value1, value2, value3};
+            for (int i = 0; i < inline; i++) {
+                replay(builder, keys[i], values[i]);
+            }
+            for (int i = 0; moreTags != null && i < moreTags.size(); i += 2) {
+                replay(builder, moreTags.get(i), moreTags.get(i + 1));
+            }
+            // the sampler was asked already, Brave must not ask it again
+            boolean decided = sampledRoot && !decidedSampler.hasDecision();
+            if (decided) {
+                decidedSampler.decide(true);
+            }
+            Span span;
+            try {
+                span = builder.start();
+            } finally {
+                if (decided) {
+                    decidedSampler.clear();
+                }
+            }
+            SpanContext context = span.context();
+            return isUnsampled(context) ? new UnsampledSpan(context) : span;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void replay(SpanBuilder builder, Object key, Object value) {
+            if (key instanceof Tag) {
+                builder.withTag((Tag<Object>) key, value);
+            } else if (value instanceof Boolean) {
+                builder.withTag((String) key, (Boolean) value);
+            } else if (value instanceof Number) {
+                builder.withTag((String) key, (Number) value);
+            } else {
+                builder.withTag((String) key, (String) value);
+            }
+        }
+    }
+
+    /** The active unsampled span of a thread, if any. */
+    final static class Slot {
+        UnsampledSpan span;
+        Scope scope;
+    }
+
+    /**
+     * Unsampled spans are made active in a thread local slot, and their context current in Brave, other spans by
+     * the delegate. Reactivating the active unsampled span, as children of an unsampled trace do, returns a shared
+     * scope.
+     */
+    final static class FastPathScopeManager implements ScopeManager {
+        private final ScopeManager delegate;
+        private final CurrentTraceContext currentTraceContext;
+        private final ThreadLocal<Slot> slots = new ThreadLocal<Slot>() {
+            @Override
+            protected Slot initialValue() {
+                return new Slot();
+            }
+        };
+        private final Scope reentered = new Scope() {
+            @Override
+            public void close() {
+            }
+
+            @Override
+            @Deprecated
+            public Span span() {
+                return slots.get().span;
+            }
+        };
+
+        FastPathScopeManager(ScopeManager delegate, CurrentTraceContext currentTraceContext) {
+            this.delegate = delegate;
+            this.currentTraceContext = currentTraceContext;
+        }
+
+        @Override
+        public Scope activate(Span span) {
+            return doActivate(span, null);
+        }
+
+        @Override
+        @Deprecated
+        public Scope activate(Span span, boolean finishSpanOnClose) {
+            return doActivate(span, finishSpanOnClose);
+        }
+
+        @SuppressWarnings("deprecation")
+        private Scope doActivate(Span span, Boolean finishSpanOnClose) {
+            Slot slot = slots.get();
+            UnsampledSpan previous = slot.span;
+            if (span instanceof UnsampledSpan) {
+                if (span == previous) {
+                    return reentered;
+                }
+                TraceContext context = traceContext(span.context());
+                RestoreScope scope = new RestoreScope(slot, span,
+                        context != null ? currentTraceContext.newScope(context) : null, null);
+                slot.span = (UnsampledSpan) span;
+                slot.scope = scope;
+                return scope;
+            }
+            Scope scope = finishSpanOnClose == null ? delegate.activate(span) : delegate.activate(span, finishSpanOnClose);
+            if (previous == null) {
+                return scope;
+            }
+            // the unsampled span is hidden while a span of another trace is active
+            RestoreScope restore = new RestoreScope(slot, span, null, scope);
+            slot.span = null;
+            slot.scope = null;
+            return restore;
+        }
+
+        @Override
+        @Deprecated
+        public Scope active() {
+            Slot slot = slots.get();
+            return slot.span != null ? slot.scope : delegate.active();
+        }
+
+        @Override
+        public Span activeSpan() {
+            UnsampledSpan span = slots.get().span;
+            return span != null ? span : delegate.activeSpan();
+        }
+
+        /** Like {@link #activeSpan()} without asking the delegate, which allocates. */
+        UnsampledSpan activeUnsampledSpan() {
+            return slots.get().span;
+        }
+    }
+
+    /** Puts back what was active in the slot before, after closing Brave's or the delegate's scope if there is one. */
+    final static class RestoreScope implements Scope {
+        private final Slot slot;
+        private final UnsampledSpan previousSpan;
+        private final Scope previousScope;
+        private final Span span;
+        private final CurrentTraceContext.Scope current;
+        private final Scope delegate;
+
+        RestoreScope(Slot slot, Span span, CurrentTraceContext.Scope current, Scope delegate) {
+            this.slot = slot;
+            this.previousSpan = slot.span;
+            this.previousScope = slot.scope;
+            this.span = span;
+            this.current = current;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.close();
+            }
+            if (delegate != null) {
+                delegate.close();
+            }
+            slot.span = previousSpan;
+            slot.scope = previousScope;
+        }
+
+        @Override
+        @Deprecated
+        public Span span() {
+            return span;
+        }
+    }
+}
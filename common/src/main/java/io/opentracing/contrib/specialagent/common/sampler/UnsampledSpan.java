@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.tag.Tag;
+
+import java.util.Map;
+
+/**
+ * Immutable span of an unsampled trace, on which every call is a no-op.
+ * <p>
+ * Children of an unsampled span are the span itself, so a trace needs at most one instance per thread. Its
+ * context is the unsampled parent's when there is one, keeping trace ids for propagation, and a
+ * {@link UnsampledFastPathTracer.UnsampledContext} for a trace decided unsampled here or carried to this thread by
+ * Brave's current trace context.
+ *
+ * @author zhangbin
+ */
+final class UnsampledSpan implements Span {
+
+    private final SpanContext context;
+
+    UnsampledSpan(SpanContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public SpanContext context() {
+        return context;
+    }
+
+    @Override
+    public Span setTag(String key, String value) {
+        return this;
+    }
+
+    @Override
+    public Span setTag(String key, boolean value) {
+        return this;
+    }
+
+    @Override
+    public Span setTag(String key, Number value) {
+        return this;
+    }
+
+    @Override
+    public <T> Span setTag(Tag<T> tag, T value) {
+        return this;
+    }
+
+    @Override
+    public Span log(Map<String, ?> fields) {
+        return this;
+    }
+
+    @Override
+    public Span log(long timestampMicroseconds, Map<String, ?> fields) {
+        return this;
+    }
+
+    @Override
+    public Span log(String event) {
+        return this;
+    }
+
+    @Override
+    public Span log(long timestampMicroseconds, String event) {
+        return this;
+    }
+
+    @Override
+    public Span setBaggageItem(String key, String value) {
+        return this;
+    }
+
+    @Override
+    public String getBaggageItem(String key) {
+        return null;
+    }
+
+    @Override
+    public Span setOperationName(String operationName) {
+        return this;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void finish(long finishMicros) {
+    }
+
+    @Override
+    public String toString() {
+        return "UnsampledSpan{" + context + "}";
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sender;
+
+import io.opentracing.contrib.specialagent.common.codec.DictionaryBatchEncoder;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends each batch as one dictionary compressed frame through another sender.
+ * <p>
+ * The delegate sees the frame as a batch of a single span, so it is transported unchanged by any sender; the
+ * collector restores the batch with {@link io.opentracing.contrib.specialagent.common.codec.DictionaryBatchDecoder}.
+ * Sizes are reported uncompressed, as the reporter sizes batches by their encoding and drops spans beyond what
+ * the sender reports. What a frame adds, the dictionary included, is taken off {@link #messageMaxBytes()}, so
+ * the reporter leaves room for it in every batch. Successful sends are reported back to the
+ * encoder, which keeps including a new dictionary until a frame carrying it got through. Partitioning by trace id
+ * no longer applies as a batch is a single span to the delegate.
+ *
+ * @author zhangbin
+ */
+public final class DictionaryCompressingSender extends Sender {
+
+    public static DictionaryCompressingSender create(Sender delegate, DictionaryBatchEncoder encoder) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        if (encoder == null) {
+            throw new NullPointerException("encoder == null");
+        }
+        if (delegate.messageMaxBytes() <= encoder.frameOverheadBytes()) {
+            throw new IllegalArgumentException(String.format("Invalid messageMaxBytes %s, frames add up to %s",
+                    delegate.messageMaxBytes(), encoder.frameOverheadBytes()));
+        }
+        return new DictionaryCompressingSender(delegate, encoder);
+    }
+
+    private final Sender delegate;
+    private final DictionaryBatchEncoder encoder;
+
+    private DictionaryCompressingSender(Sender delegate, DictionaryBatchEncoder encoder) {
+        this.delegate = delegate;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return delegate.encoding();
+    }
+
+    @Override
+    public int messageMaxBytes() {
+        return delegate.messageMaxBytes() - encoder.frameOverheadBytes();
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return delegate.messageSizeInBytes(encodedSpans);
+    }
+
+    @Override
+    public int messageSizeInBytes(int encodedSizeInBytes) {
+        return delegate.messageSizeInBytes(encodedSizeInBytes);
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        if (encodedSpans.isEmpty()) {
+            return delegate.sendSpans(encodedSpans);
+        }
+        byte[] frame = encoder.encode(encoding(), encodedSpans);
+        return new FrameCall(delegate.sendSpans(Collections.singletonList(frame)), frame);
+    }
+
+    @Override
+    public CheckResult check() {
+        return delegate.check();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+        } finally {
+            encoder.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DictionaryCompressingSender(" + delegate + ")";
+    }
+
+    /** Tells the encoder when the frame was sent. */
+    final class FrameCall extends Call<Void> {
+        private final Call<Void> call;
+        private final byte[] frame;
+
+        FrameCall(Call<Void> call, byte[] frame) {
+            this.call = call;
+            this.frame = frame;
+        }
+
+        @Override
+        public Void execute() throws IOException {
+            Void result = call.execute();
+            encoder.delivered(frame);
+            return result;
+        }
+
+        @Override
+        public void enqueue(final Callback<Void> callback) {
+            call.enqueue(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    encoder.delivered(frame);
+                    callback.onSuccess(value);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    callback.onError(t);
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            call.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return call.isCanceled();
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new FrameCall(call.clone(), frame);
+        }
+
+        @Override
+        public String toString() {
+            return "FrameCall(" + call + ")";
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sender;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Sender;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Kafka sender that keeps every span of a trace on one partition.
+ * <p>
+ * Each batch handed over by the reporter is split by a hash of the encoded spans' trace ids, and every group is
+ * produced as one message to partition {@code hash % partitions}, as Kafka's {@code DefaultPartitioner} maps keys,
+ * so every process agrees on a trace's partition whatever order the metadata lists them in. Downstream consumers
+ * can therefore aggregate traces per partition, while messages stay batched. With a single partition the batch is
+ * sent as is.
+ * <p>
+ * Asking the producer for partitions can block until the broker answers, so the count is looked up by a
+ * background thread, first on the first send and then every {@code metadata.max.age.ms}. Batches sent before the
+ * first answer go out as is, like with a single partition.
+ * <p>
+ * Defaults match zipkin's KafkaSender except {@code batch.size}, which is left to the producer default so
+ * that {@code linger.ms} can batch messages; all producer properties can be overridden.
+ *
+ * @author zhangbin
+ */
+public final class TraceAffinityKafkaSender extends Sender {
+
+    private final static Logger logger = Logger.getLogger(TraceAffinityKafkaSender.class.getName());
+
+    /** Kafka's default {@code metadata.max.age.ms} */
+    final static long PARTITIONS_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Creates a sender for {@code bootstrapServers}; the producer is only created on first use. Works with the
+     * kafka-clients of both Kafka08 (0.8.2) and Kafka11, as it only uses the producer API they share.
+     */
+    public static TraceAffinityKafkaSender create(String bootstrapServers, String topic, Properties overrides,
+                                                  Encoding encoding) {
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        properties.put(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, 1000000);
+        properties.put(ProducerConfig.ACKS_CONFIG, "0");
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        if (overrides != null) {
+            properties.putAll(overrides);
+        }
+        return new TraceAffinityKafkaSender(null, properties, topic, encoding);
+    }
+
+    /** Uses the given producer, e.g. a {@code MockProducer} standing in for a broker. */
+    public static TraceAffinityKafkaSender create(Producer<byte[], byte[]> producer, String topic, Encoding encoding) {
+        return new TraceAffinityKafkaSender(producer, null, topic, encoding);
+    }
+
+    private final Properties properties;
+    private final String topic;
+    private final Encoding encoding;
+    private final BytesMessageEncoder messageEncoder;
+    private final int messageMaxBytes;
+    private final long partitionsRefreshMillis;
+    private volatile Producer<byte[], byte[]> producer;
+    private volatile ScheduledExecutorService partitionsRefresher;
+    /** 0 until the producer first tells */
+    private volatile int partitionCount;
+    private volatile boolean closeCalled;
+
+    private TraceAffinityKafkaSender(Producer<byte[], byte[]> producer, Properties properties, String topic,
+                                     Encoding encoding) {
+        this.producer = producer;
+        this.properties = properties;
+        this.topic = topic != null ? topic : "zipkin";
+        this.encoding = encoding;
+        this.messageEncoder = BytesMessageEncoder.forEncoding(encoding);
+        Object maxRequestSize = properties != null ? properties.get(ProducerConfig.MAX_REQUEST_SIZE_CONFIG) : null;
+        this.messageMaxBytes = maxRequestSize != null ? Integer.parseInt(maxRequestSize.toString()) : 1000000;
+        Object metadataMaxAge = properties != null ? properties.get(ProducerConfig.METADATA_MAX_AGE_CONFIG) : null;
+        this.partitionsRefreshMillis = metadataMaxAge != null ? Long.parseLong(metadataMaxAge.toString())
+                : PARTITIONS_REFRESH_MILLIS;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    @Override
+    public int messageMaxBytes() {
+        return messageMaxBytes;
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return encoding.listSizeInBytes(encodedSpans);
+    }
+
+    @Override
+    public int messageSizeInBytes(int encodedSizeInBytes) {
+        return encoding.listSizeInBytes(encodedSizeInBytes);
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        if (closeCalled) {
+            throw new IllegalStateException("closed");
+        }
+        return new KafkaCall(partition(encodedSpans));
+    }
+
+    /** Groups the spans into one record per partition. */
+    List<ProducerRecord<byte[], byte[]>> partition(List<byte[]> encodedSpans) {
+        int count = partitionCount();
+        if (encodedSpans.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ProducerRecord<byte[], byte[]>> records = new ArrayList<>(Math.min(count, encodedSpans.size()) + 1);
+        if (count <= 1) {
+            records.add(new ProducerRecord<byte[], byte[]>(topic, messageEncoder.encode(encodedSpans)));
+            return records;
+        }
+
+        List<List<byte[]>> groups = new ArrayList<>(Collections.<List<byte[]>>nCopies(count, null));
+        for (byte[] span : encodedSpans) {
+            int partition = (TraceIdHash.hash(encoding, span) & 0x7fffffff) % count;
+            List<byte[]> group = groups.get(partition);
+            if (group == null) {
+                groups.set(partition, group = new ArrayList<>());
+            }
+            group.add(span);
+        }
+        for (int partition = 0; partition < count; partition++) {
+            List<byte[]> group = groups.get(partition);
+            if (group != null) {
+                records.add(new ProducerRecord<byte[], byte[]>(topic, partition, null, messageEncoder.encode(group)));
+            }
+        }
+        return records;
+    }
+
+    /** The last partition count the producer told, starting the background lookup on first use. */
+    int partitionCount() {
+        if (partitionsRefresher == null) {
+            synchronized (this) {
+                if (partitionsRefresher == null && !closeCalled) {
+                    ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "TraceAffinityKafkaSender{" + topic + "}");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    refresher.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshPartitions();
+                        }
+                    }, 0L, partitionsRefreshMillis, TimeUnit.MILLISECONDS);
+                    partitionsRefresher = refresher;
+                }
+            }
+        }
+        return partitionCount;
+    }
+
+    /** Asks the producer for the partitions of the topic, which blocks while it has no metadata for it. */
+    void refreshPartitions() {
+        try {
+            List<PartitionInfo> partitions = getProducer().partitionsFor(topic);
+            partitionCount = partitions == null ? 0 : partitions.size();
+        } catch (RuntimeException e) {
+            // keep the last count, the next refresh tries again
+            logger.log(Level.WARNING, "Failed to look up the partitions of " + topic + ": " + e);
+        }
+    }
+
+    Producer<byte[], byte[]> getProducer() {
+        if (producer == null) {
+            synchronized (this) {
+                if (producer == null) {
+                    producer = new KafkaProducer<>(properties);
+                }
+            }
+        }
+        return producer;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closeCalled) {
+            return;
+        }
+        closeCalled = true;
+        if (partitionsRefresher != null) {
+            partitionsRefresher.shutdownNow();
+        }
+        if (producer != null) {
+            producer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TraceAffinityKafkaSender{bootstrapServers="
+                + (properties != null ? properties.get(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG) : producer)
+                + ", topic=" + topic + "}";
+    }
+
+    final class KafkaCall extends Call.Base<Void> {
+        private final List<ProducerRecord<byte[], byte[]>> records;
+
+        KafkaCall(List<ProducerRecord<byte[], byte[]>> records) {
+            this.records = records;
+        }
+
+        @Override
+        protected Void doExecute() throws IOException {
+            List<Future<RecordMetadata>> futures = new ArrayList<>(records.size());
+            for (ProducerRecord<byte[], byte[]> record : records) {
+                futures.add(getProducer().send(record));
+            }
+            try {
+                for (Future<RecordMetadata> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+            return null;
+        }
+
+        @Override
+        protected void doEnqueue(final Callback<Void> callback) {
+            if (records.isEmpty()) {
+                callback.onSuccess(null);
+                return;
+            }
+            final AtomicInteger remaining = new AtomicInteger(records.size());
+            org.apache.kafka.clients.producer.Callback onCompletion = new org.apache.kafka.clients.producer.Callback() {
+                @Override
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    if (exception != null) {
+                        // report the first failure only
+                        if (remaining.getAndSet(-1) > 0) {
+                            callback.onError(exception);
+                        }
+                    } else if (remaining.decrementAndGet() == 0) {
+                        callback.onSuccess(null);
+                    }
+                }
+            };
+            for (ProducerRecord<byte[], byte[]> record : records) {
+                getProducer().send(record, onCompletion);
+            }
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new KafkaCall(records);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sender;
+
+import zipkin2.codec.Encoding;
+
+/**
+ * Hashes the trace id of an already encoded span without decoding it.
+ * <p>
+ * Every zipkin encoding writes the trace id first: JSON as {@code {"traceId":"<hex>"}}, PROTO3 as field 1 of
+ * the (single element) list's span, and THRIFT as field 1 of the span struct. Each is parsed to the low 64 bits
+ * of the trace id and that number is hashed, so a trace hashes the same under every encoding, and whether or not
+ * its id was written with 128 bits.
+ *
+ * @author zhangbin
+ */
+final class TraceIdHash {
+
+    private TraceIdHash() {
+    }
+
+    private final static byte[] JSON_PREFIX = {'{', '"', 't', 'r', 'a', 'c', 'e', 'I', 'd', '"', ':', '"'};
+
+    static int hash(Encoding encoding, byte[] span) {
+        switch (encoding) {
+            case JSON:
+                return json(span);
+            case PROTO3:
+                return proto3(span);
+            case THRIFT:
+                return thrift(span);
+            default:
+                return fnv1a(span, 0, span.length);
+        }
+    }
+
+    static int json(byte[] span) {
+        int end = JSON_PREFIX.length;
+        if (span.length < end + 16) {
+            return fnv1a(span, 0, span.length);
+        }
+        for (int i = 0; i < end; i++) {
+            if (span[i] != JSON_PREFIX[i]) {
+                return fnv1a(span, 0, span.length);
+            }
+        }
+        while (end < span.length && span[end] != '"') {
+            end++;
+        }
+        if (end - 16 < JSON_PREFIX.length) {
+            return fnv1a(span, 0, span.length);
+        }
+        long traceId = 0L;
+        for (int i = end - 16; i < end; i++) {
+            int digit = Character.digit(span[i], 16);
+            if (digit == -1) {
+                return fnv1a(span, 0, span.length);
+            }
+            traceId = traceId << 4 | digit;
+        }
+        return hash(traceId);
+    }
+
+    static int proto3(byte[] span) {
+        // ListOfSpans.spans (field 1, length delimited), then Span.trace_id (field 1, 8 or 16 bytes big endian)
+        int pos = 0;
+        if (span.length < 2 || span[pos++] != 0x0a) {
+            return fnv1a(span, 0, span.length);
+        }
+        while (pos < span.length && (span[pos] & 0x80) != 0) {
+            pos++;
+        }
+        pos++;
+        if (pos + 2 > span.length || span[pos] != 0x0a) {
+            return fnv1a(span, 0, span.length);
+        }
+        int end = pos + 2 + span[pos + 1];
+        return end <= span.length && end - 8 >= pos + 2 ? hash(readLong(span, end - 8)) : fnv1a(span, 0, span.length);
+    }
+
+    static int thrift(byte[] span) {
+        // Span.trace_id: type i64 (0x0a), field id 1, then 8 bytes big endian
+        if (span.length >= 11 && span[0] == 0x0a && span[1] == 0 && span[2] == 1) {
+            return hash(readLong(span, 3));
+        }
+        return fnv1a(span, 0, span.length);
+    }
+
+    static long readLong(byte[] bytes, int pos) {
+        long value = 0L;
+        for (int i = pos; i < pos + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /** FNV-1a over the big endian bytes of {@code traceId}. */
+    static int hash(long traceId) {
+        int hash = 0x811c9dc5;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            hash ^= (int) (traceId >>> shift) & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    static int fnv1a(byte[] bytes, int begin, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = begin; i < end; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigurationTest {
+
+    @Before
+    @After
+    public void clearProperties() {
+        for (String propName : System.getProperties().stringPropertyNames()) {
+            if (propName.startsWith("BRAVE_"))
+                System.clearProperty(propName);
+        }
+    }
+
+    @Test
+    public void destinationKey_fallsBackToTopLevelKey() {
+        System.setProperty("BRAVE_DESTINATION_KAFKA_SENDER_TYPE", "Kafka11");
+
+        assertEquals("BRAVE_DESTINATION_KAFKA_SENDER_TYPE",
+                Configuration.destinationKey("kafka", BraveConstant.BRAVE_SENDER_TYPE));
+        assertEquals(BraveConstant.BRAVE_SENDER_ADDRESS,
+                Configuration.destinationKey("kafka", BraveConstant.BRAVE_SENDER_ADDRESS));
+        assertEquals(BraveConstant.BRAVE_SENDER_TYPE,
+                Configuration.destinationKey(null, BraveConstant.BRAVE_SENDER_TYPE));
+    }
+
+    @Test
+    public void defaultPropagation_extractsSingleHeaderB3() {
+        Propagation<String> propagation = Configuration.PropagationConfiguration.fromEnv().createPropagationFactory()
+                .create(Propagation.KeyFactory.STRING);
+        Map<String, String> carrier = Collections.singletonMap("b3", "463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-1");
+
+        TraceContext context = propagation.extractor(new Propagation.Getter<Map<String, String>, String>() {
+            @Override
+            public String get(Map<String, String> carrier, String key) {
+                return carrier.get(key);
+            }
+        }).extract(carrier).context();
+        assertNotNull(context);
+        assertEquals("463ac35c9f6413ad48485a3953bb6124", context.traceIdString());
+        assertEquals(0xa2fb4a1d1a96d312L, context.spanId());
+    }
+
+    @Test
+    public void kafkaOverrides_mapToProducerProperties() {
+        System.setProperty("BRAVE_SENDER_KAFKA_LINGER_MS", "5");
+        System.setProperty("BRAVE_SENDER_KAFKA_COMPRESSION_TYPE", "lz4");
+        System.setProperty(BraveConstant.BRAVE_SENDER_KAFKA_TOPIC, "spans");
+        System.setProperty(BraveConstant.BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID, "false");
+
+        Properties overrides = Configuration.SenderConfiguration.kafkaOverrides(BraveConstant.BRAVE_SENDER_KAFKA_PREFIX);
+        assertEquals("5", overrides.getProperty("linger.ms"));
+        assertEquals("lz4", overrides.getProperty("compression.type"));
+        assertFalse(overrides.containsKey("topic"));
+        assertEquals(2, overrides.size());
+    }
+
+    @Test
+    public void kafkaPartitionByTraceId_defaultsOnForKafka11Only() {
+        assertFalse(Configuration.SenderConfiguration.fromEnv().isKafkaPartitionedByTraceId("Kafka08"));
+        assertTrue(Configuration.SenderConfiguration.fromEnv().isKafkaPartitionedByTraceId("Kafka11"));
+
+        System.setProperty(BraveConstant.BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID, "true");
+        assertTrue(Configuration.SenderConfiguration.fromEnv().isKafkaPartitionedByTraceId("Kafka08"));
+        System.setProperty(BraveConstant.BRAVE_SENDER_KAFKA_PARTITION_BY_TRACE_ID, "false");
+        assertFalse(Configuration.SenderConfiguration.fromEnv().isKafkaPartitionedByTraceId("Kafka11"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void destinations_rejectTheSingleDestinationName() {
+        System.setProperty(BraveConstant.BRAVE_DESTINATIONS, "kafka,Default");
+        Configuration.ReporterConfiguration.fromEnv();
+    }
+
+    @Test
+    public void batching_perDestination() {
+        System.setProperty(BraveConstant.BRAVE_BATCHING, "fixed");
+        System.setProperty("BRAVE_DESTINATION_KAFKA_BATCHING", "adaptive");
+
+        assertTrue(Configuration.ReporterConfiguration.fromEnv("kafka").isAdaptive());
+        assertFalse(Configuration.ReporterConfiguration.fromEnv("rabbit").isAdaptive());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batching_rejectsUnknownMode() {
+        System.setProperty(BraveConstant.BRAVE_BATCHING, "eager");
+        Configuration.ReporterConfiguration.fromEnv(null).isAdaptive();
+    }
+
+    @Test
+    public void batchCompression_perDestination() {
+        System.setProperty("BRAVE_DESTINATION_KAFKA_BATCH_COMPRESSION", "dictionary");
+
+        assertTrue(Configuration.ReporterConfiguration.fromEnv("kafka").isDictionaryCompressed());
+        assertFalse(Configuration.ReporterConfiguration.fromEnv("rabbit").isDictionaryCompressed());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batchCompression_rejectsUnknownMode() {
+        System.setProperty(BraveConstant.BRAVE_BATCH_COMPRESSION, "zstd");
+        Configuration.ReporterConfiguration.fromEnv(null).isDictionaryCompressed();
+    }
+
+    @Test
+    public void shutdownMode_drainsOnlyWhenAsked() {
+        assertNull(Configuration.ShutdownConfiguration.fromEnv().createDrain("orders"));
+
+        System.setProperty(BraveConstant.BRAVE_SHUTDOWN_MODE, "drain");
+        assertNotNull(Configuration.ShutdownConfiguration.fromEnv().createDrain("orders"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shutdownMode_rejectsUnknownMode() {
+        System.setProperty(BraveConstant.BRAVE_SHUTDOWN_MODE, "flush");
+        Configuration.ShutdownConfiguration.fromEnv().isDrain();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void remoteSampler_requiresUrl() {
+        System.setProperty(BraveConstant.BRAVE_SAMPLER_TYPE, "remote");
+        Configuration.SamplerConfiguration.fromEnv().createSampler();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void currentContext_rejectsUnknownMode() {
+        System.setProperty(BraveConstant.BRAVE_CURRENT_CONTEXT, "scoped");
+        Configuration.ContextConfiguration.fromEnv().createCurrentTraceContext();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.codec;
+
+import io.opentracing.contrib.specialagent.common.sender.DictionaryCompressingSender;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Sender;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DictionaryBatchCodecTest {
+
+    @Test
+    public void roundTrip_everyEncoding() {
+        SpanBytesEncoder[] encoders = {SpanBytesEncoder.JSON_V2, SpanBytesEncoder.PROTO3, SpanBytesEncoder.THRIFT};
+        SpanBytesDecoder[] decoders = {SpanBytesDecoder.JSON_V2, SpanBytesDecoder.PROTO3, SpanBytesDecoder.THRIFT};
+        for (int i = 0; i < encoders.length; i++) {
+            DictionaryBatchEncoder encoder = DictionaryBatchEncoder.newBuilder().sampleSpans(16, 16).build();
+            DictionaryBatchDecoder decoder = DictionaryBatchDecoder.create();
+            for (int batch = 0; batch < 4; batch++) {
+                List<Span> spans = spans(batch * 10, 10);
+                byte[] message = send(encoders[i].encoding(), encoder.encode(encoders[i].encoding(), encode(encoders[i], spans)));
+
+                assertTrue(DictionaryBatchDecoder.isFrame(message));
+                assertEquals(spans, decoder.decodeSpans(message, decoders[i]));
+            }
+            assertNotEquals(DictionaryFrame.NO_DICTIONARY, encoder.dictionaryId());
+        }
+    }
+
+    @Test
+    public void trainedDictionary_shrinksBatches() {
+        DictionaryBatchEncoder encoder = DictionaryBatchEncoder.newBuilder().sampleSpans(64, 64).resendBatches(1000).build();
+        List<byte[]> batch = encode(SpanBytesEncoder.JSON_V2, spans(0, 5));
+        int untrained = encoder.encode(Encoding.JSON, batch).length;
+        assertEquals(DictionaryFrame.NO_DICTIONARY, encoder.dictionaryId());
+
+        for (int i = 1; i <= 8; i++) {
+            encoder.delivered(encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(i * 100, 10))));
+        }
+        assertNotEquals(DictionaryFrame.NO_DICTIONARY, encoder.dictionaryId());
+        int trained = encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(5000, 5))).length;
+        assertTrue(untrained + " -> " + trained, trained * 2 < untrained);
+    }
+
+    @Test
+    public void missedDictionary_isResent() {
+        DictionaryBatchEncoder encoder = DictionaryBatchEncoder.newBuilder().sampleSpans(16, 16).resendBatches(3).build();
+        encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(0, 10)));
+        // carries the dictionary
+        encoder.delivered(encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(10, 10))));
+
+        DictionaryBatchDecoder restarted = DictionaryBatchDecoder.create();
+        byte[] withoutDictionary = send(Encoding.JSON, encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(20, 10))));
+        try {
+            restarted.decode(withoutDictionary);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().startsWith("Unknown dictionary"));
+        }
+        encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(30, 10)));
+        byte[] resent = send(Encoding.JSON, encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(40, 10))));
+
+        assertEquals(spans(40, 10), restarted.decodeSpans(resent, SpanBytesDecoder.JSON_V2));
+        assertEquals(spans(20, 10), restarted.decodeSpans(withoutDictionary, SpanBytesDecoder.JSON_V2));
+    }
+
+    @Test
+    public void sender_includesDictionaryUntilAFrameWithItIsSent() throws Exception {
+        final List<byte[]> sent = new ArrayList<>();
+        final boolean[] fail = {true};
+        Sender transport = new Sender() {
+            @Override
+            public Encoding encoding() {
+                return Encoding.JSON;
+            }
+
+            @Override
+            public int messageMaxBytes() {
+                return 64 * 1024;
+            }
+
+            @Override
+            public int messageSizeInBytes(List<byte[]> encodedSpans) {
+                return Encoding.JSON.listSizeInBytes(encodedSpans);
+            }
+
+            @Override
+            public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+                final byte[] frame = encodedSpans.get(0);
+                return new Call.Base<Void>() {
+                    @Override
+                    protected Void doExecute() throws IOException {
+                        if (fail[0]) {
+                            throw new IOException("unavailable");
+                        }
+                        sent.add(frame);
+                        return null;
+                    }
+
+                    @Override
+                    protected void doEnqueue(Callback<Void> callback) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public Call<Void> clone() {
+                        return this;
+                    }
+                };
+            }
+        };
+        DictionaryBatchEncoder encoder = DictionaryBatchEncoder.newBuilder().sampleSpans(16, 16).build();
+        Sender sender = DictionaryCompressingSender.create(transport, encoder);
+        for (int i = 0; i <= 2; i++) {
+            try {
+                sender.sendSpans(encode(SpanBytesEncoder.JSON_V2, spans(i * 20, 20))).execute();
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        assertNotEquals(DictionaryFrame.NO_DICTIONARY, encoder.dictionaryId());
+
+        fail[0] = false;
+        for (int i = 3; i <= 5; i++) {
+            sender.sendSpans(encode(SpanBytesEncoder.JSON_V2, spans(i * 20, 20))).execute();
+        }
+        assertTrue(included(sent.get(0)));
+        assertFalse(included(sent.get(1)));
+        assertFalse(included(sent.get(2)));
+        assertEquals(64 * 1024 - encoder.frameOverheadBytes(), sender.messageMaxBytes());
+    }
+
+    static boolean included(byte[] frame) {
+        return (frame[3] & DictionaryFrame.FLAG_DICTIONARY_INCLUDED) != 0;
+    }
+
+    @Test
+    public void decode_rejectsCorruptFrames() {
+        DictionaryBatchEncoder encoder = DictionaryBatchEncoder.newBuilder().build();
+        byte[] frame = encoder.encode(Encoding.JSON, encode(SpanBytesEncoder.JSON_V2, spans(0, 3)));
+        assertFalse(DictionaryBatchDecoder.isFrame(SpanBytesEncoder.JSON_V2.encodeList(spans(0, 3))));
+
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        try {
+            DictionaryBatchDecoder.create().decode(truncated);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertArrayEquals(BytesMessageEncoder.JSON.encode(encode(SpanBytesEncoder.JSON_V2, spans(0, 3))),
+                DictionaryBatchDecoder.create().decode(frame));
+    }
+
+    @Test
+    public void sender_deliversEveryReportedSpan() {
+        final List<Span> collected = new CopyOnWriteArrayList<>();
+        final DictionaryBatchDecoder collector = DictionaryBatchDecoder.create();
+        Sender transport = new Sender() {
+            @Override
+            public Encoding encoding() {
+                return Encoding.PROTO3;
+            }
+
+            @Override
+            public int messageMaxBytes() {
+                return 64 * 1024;
+            }
+
+            @Override
+            public int messageSizeInBytes(List<byte[]> encodedSpans) {
+                return Encoding.PROTO3.listSizeInBytes(encodedSpans);
+            }
+
+            @Override
+            public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+                byte[] message = BytesMessageEncoder.PROTO3.encode(encodedSpans);
+                assertTrue(message.length <= messageMaxBytes());
+                collected.addAll(collector.decodeSpans(message, SpanBytesDecoder.PROTO3));
+                return Call.create(null);
+            }
+        };
+        AsyncReporter<Span> reporter = AsyncReporter.builder(
+                DictionaryCompressingSender.create(transport, DictionaryBatchEncoder.newBuilder().build()))
+                .messageTimeout(0, java.util.concurrent.TimeUnit.NANOSECONDS)
+                .build(SpanBytesEncoder.PROTO3);
+
+        List<Span> spans = spans(0, 1000);
+        for (Span span : spans) {
+            reporter.report(span);
+        }
+        for (int i = 0; i < 100 && collected.size() < spans.size(); i++) {
+            reporter.flush(); // each flush sends one message of at most messageMaxBytes
+        }
+        reporter.close();
+        assertEquals(spans, collected);
+    }
+
+    static List<byte[]> encode(SpanBytesEncoder encoder, List<Span> spans) {
+        List<byte[]> encoded = new ArrayList<>(spans.size());
+        for (Span span : spans) {
+            encoded.add(encoder.encode(span));
+        }
+        return encoded;
+    }
+
+    /** Wraps the frame in the list encoding, as a transport does with a batch of one span. */
+    static byte[] send(Encoding encoding, byte[] frame) {
+        List<byte[]> batch = new ArrayList<>();
+        batch.add(frame);
+        return BytesMessageEncoder.forEncoding(encoding).encode(batch);
+    }
+
+    static List<Span> spans(int first, int count) {
+        String[] names = {"get /orders", "select orders", "post /payments", "publish order-created"};
+        List<Span> spans = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            spans.add(Span.newBuilder()
+                    .traceId(0x463ac35c9f6413adL, 0x48485a3953bb6124L + i / 4)
+                    .id(0xa2fb4a1d1a96d312L + i)
+                    .name(names[i % names.length])
+                    .kind(Span.Kind.SERVER)
+                    .localEndpoint(Endpoint.newBuilder().serviceName("order-service").ip("10.1.2.3").port(8080).build())
+                    .remoteEndpoint(Endpoint.newBuilder().serviceName("gateway").ip("10.1.0.7").build())
+                    .timestamp(1570000000000000L + i * 1000L)
+                    .duration(1000L + i % 97)
+                    .putTag("http.method", i % 2 == 0 ? "GET" : "POST")
+                    .putTag("http.path", "/orders/" + (i % 13))
+                    .putTag("component", "servlet")
+                    .build());
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.context;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CurrentContextTest {
+
+    final static TraceContext PARENT = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+    final static TraceContext CHILD = TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).build();
+
+    final CurrentTraceContext current = LightweightCurrentTraceContext.create();
+
+    @Test
+    public void scopesNestAndRestore() {
+        try (CurrentTraceContext.Scope outer = current.newScope(PARENT)) {
+            try (CurrentTraceContext.Scope inner = current.newScope(CHILD)) {
+                assertSame(CHILD, current.get());
+                try (CurrentTraceContext.Scope cleared = current.newScope(null)) {
+                    assertNull(current.get());
+                }
+                assertSame(CHILD, current.get());
+            }
+            assertSame(PARENT, current.get());
+        }
+        assertNull(current.get());
+    }
+
+    @Test
+    public void scopesFromEmptyThreadAreShared() {
+        CurrentTraceContext.Scope first = current.newScope(PARENT);
+        first.close();
+        CurrentTraceContext.Scope second = current.newScope(CHILD);
+        second.close();
+        assertSame(first, second);
+
+        try (CurrentTraceContext.Scope scope = current.newScope(PARENT)) {
+            assertSame(CurrentTraceContext.Scope.NOOP, current.newScope(PARENT));
+            CurrentTraceContext.Scope nested = current.newScope(CHILD);
+            assertNotSame(first, nested);
+            nested.close();
+        }
+    }
+
+    @Test
+    public void wrap_clearsForeignContextOutsideTrace() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            // leaves the pool thread inside a scope, as a task that leaked one would
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    current.newScope(PARENT);
+                }
+            }).get(5, TimeUnit.SECONDS);
+            Callable<TraceContext> read = new Callable<TraceContext>() {
+                @Override
+                public TraceContext call() {
+                    return current.get();
+                }
+            };
+
+            assertNull(current.executorService(pool).submit(read).get(5, TimeUnit.SECONDS));
+            final AtomicReference<TraceContext> inRunnable = new AtomicReference<>(PARENT);
+            current.executor(pool).execute(new Runnable() {
+                @Override
+                public void run() {
+                    inRunnable.set(current.get());
+                }
+            });
+            // the pool thread gets its own context back after each wrapped task
+            assertSame(PARENT, pool.submit(read).get(5, TimeUnit.SECONDS));
+            assertNull(inRunnable.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void executorService_carriesContextIntoForkJoinPool() throws Exception {
+        ExecutorService executor = current.executorService(new ForkJoinPool(2));
+        try {
+            CompletableFuture<TraceContext> inTask;
+            try (CurrentTraceContext.Scope scope = current.newScope(PARENT)) {
+                inTask = CompletableFuture.supplyAsync(new java.util.function.Supplier<TraceContext>() {
+                    @Override
+                    public TraceContext get() {
+                        return current.get();
+                    }
+                }, executor);
+            }
+            assertSame(PARENT, inTask.get(5, TimeUnit.SECONDS));
+
+            TraceContext outsideTrace = executor.submit(new Callable<TraceContext>() {
+                @Override
+                public TraceContext call() {
+                    return current.get();
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertNull(outsideTrace);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void auto_followsVirtualThreadSupport() {
+        CurrentTraceContext auto = CurrentContextMode.AUTO.create();
+        assertEquals(CurrentContextMode.VIRTUAL_THREADS, auto instanceof LightweightCurrentTraceContext);
+        assertTrue(CurrentContextMode.INHERITABLE.create() != null);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.opentracing.contrib.specialagent.common.propagation;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FormatPropagationTest {
+
+    final static TraceContext CONTEXT = TraceContext.newBuilder()
+            .traceIdHigh(0x463ac35c9f6413adL)
+            .traceId(0x48485a3953bb6124L)
+            .parentId(0x2L)
+            .spanId(0xa2fb4a1d1a96d312L)
+            .sampled(true)
+            .build();
+
+    @Test
+    public void b3_roundTrip() {
+        Map<String, String> carrier = inject(PropagationFormat.B3, CONTEXT);
+        assertEquals("463ac35c9f6413ad48485a3953bb6124", carrier.get("X-B3-TraceId"));
+        assertEquals("a2fb4a1d1a96d312", carrier.get("X-B3-SpanId"));
+        assertEquals("0000000000000002", carrier.get("X-B3-ParentSpanId"));
+        assertEquals("1", carrier.get("X-B3-Sampled"));
+
+        assertEquals(CONTEXT, extract(carrier, PropagationFormat.B3).context());
+    }
+
+    @Test
+    public void b3Single_roundTrip() {
+        Map<String, String> carrier = inject(PropagationFormat.B3_SINGLE, CONTEXT);
+        assertEquals("463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-1-0000000000000002", carrier.get("b3"));
+
+        TraceContext extracted = extract(carrier, PropagationFormat.B3_SINGLE).context();
+        assertEquals(CONTEXT, extracted);
+        assertEquals(CONTEXT.parentIdAsLong(), extracted.parentIdAsLong());
+    }
+
+    @Test
+    public void b3Single_samplingOnly() {
+        Map<String, String> carrier = Collections.singletonMap("b3", "0");
+        assertEquals(TraceContextOrSamplingFlags.NOT_SAMPLED, extract(carrier, PropagationFormat.B3_SINGLE));
+    }
+
+    @Test
+    public void w3c_roundTrip() {
+        Map<String, String> carrier = inject(PropagationFormat.W3C, CONTEXT);
+        assertEquals("00-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01", carrier.get("traceparent"));
+
+        TraceContext extracted = extract(carrier, PropagationFormat.W3C).context();
+        assertEquals(CONTEXT.traceIdHigh(), extracted.traceIdHigh());
+        assertEquals(CONTEXT.traceId(), extracted.traceId());
+        assertEquals(CONTEXT.spanId(), extracted.spanId());
+        assertTrue(extracted.sampled());
+    }
+
+    @Test
+    public void w3c_rejectsMalformed() {
+        assertNull(extract(Collections.singletonMap("traceparent",
+                "00-00000000000000000000000000000000-a2fb4a1d1a96d312-01"), PropagationFormat.W3C).context());
+        assertNull(extract(Collections.singletonMap("traceparent",
+                "ff-463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-01"), PropagationFormat.W3C).context());
+        assertNull(extract(Collections.singletonMap("traceparent",
+                "00-463AC35C9F6413AD48485A3953BB6124-a2fb4a1d1a96d312-01"), PropagationFormat.W3C).context());
+    }
+
+    @Test
+    public void composite_extractsFirstPresentFormat() {
+        Map<String, String> carrier = inject(PropagationFormat.B3_SINGLE, CONTEXT);
+
+        TraceContextOrSamplingFlags extracted = extract(carrier, PropagationFormat.W3C, PropagationFormat.B3_SINGLE);
+        assertEquals(CONTEXT, extracted.context());
+        assertEquals(TraceContextOrSamplingFlags.EMPTY, extract(carrier, PropagationFormat.W3C));
+    }
+
+    @Test
+    public void b3_extractsSingleHeaderFirst() {
+        Map<String, String> carrier = inject(CONTEXT, PropagationFormat.B3_SINGLE);
+        carrier.put("X-B3-TraceId", "0000000000000001");
+        carrier.put("X-B3-SpanId", "0000000000000002");
+
+        assertEquals(CONTEXT, extract(carrier, PropagationFormat.B3).context());
+        // the single header is only read, never written
+        assertFalse(inject(PropagationFormat.B3, CONTEXT).containsKey("b3"));
+    }
+
+    @Test
+    public void composite_injectsAllFormats() {
+        Map<String, String> carrier = inject(CONTEXT, PropagationFormat.W3C, PropagationFormat.B3);
+        assertTrue(carrier.containsKey("traceparent"));
+        assertTrue(carrier.containsKey("X-B3-TraceId"));
+        assertFalse(carrier.containsKey("b3"));
+    }
+
+    @Test
+    public void inject_reusesEncodedValueOfSameContext() {
+        Propagation.Factory factory = FormatPropagation.newFactory(Arrays.asList(PropagationFormat.B3_SINGLE));
+        TraceContext decorated = factory.decorate(CONTEXT);
+        TraceContext.Injector<Map<String, String>> injector = factory.create(Propagation.KeyFactory.STRING)
+                .injector(MAP_SETTER);
+
+        Map<String, String> first = new LinkedHashMap<>();
+        injector.inject(decorated, first);
+        Map<String, String> second = new LinkedHashMap<>();
+        injector.inject(decorated, second);
+        assertSame(first.get("b3"), second.get("b3"));
+
+        // a child inherits the cache through extra, but must not see its parent's encoding
+        TraceContext child = factory.decorate(decorated.toBuilder().parentId(decorated.spanId()).spanId(3L).build());
+        Map<String, String> third = new LinkedHashMap<>();
+        injector.inject(child, third);
+        assertEquals("463ac35c9f6413ad48485a3953bb6124-0000000000000003-1-a2fb4a1d1a96d312", third.get("b3"));
+    }
+
+    @Test
+    public void hexCodec_parsesRangesInPlace() {
+        assertEquals(0xa2fb4a1d1a96d312L,
+                HexCodec.lenientLowerHexToUnsignedLong("x-a2fb4a1d1a96d312-y", 2, 18));
+        assertEquals(0L, HexCodec.lenientLowerHexToUnsignedLong("a2fb4a1d1a96d312a", 0, 17));
+        assertEquals(0L, HexCodec.lenientLowerHexToUnsignedLong("a2fb4a1d1a96d31g", 0, 16));
+        assertEquals("a2fb4a1d1a96d312", HexCodec.toLowerHex(0xa2fb4a1d1a96d312L));
+    }
+
+    final static Propagation.Setter<Map<String, String>, String> MAP_SETTER =
+            new Propagation.Setter<Map<String, String>, String>() {
+                @Override
+                public void put(Map<String, String> carrier, String key, String value) {
+                    carrier.put(key, value);
+                }
+            };
+
+    final static Propagation.Getter<Map<String, String>, String> MAP_GETTER =
+            new Propagation.Getter<Map<String, String>, String>() {
+                @Override
+                public String get(Map<String, String> carrier, String key) {
+                    return carrier.get(key);
+                }
+            };
+
+    static Map<String, String> inject(PropagationFormat format, TraceContext context) {
+        return inject(context, format);
+    }
+
+    static Map<String, String> inject(TraceContext context, PropagationFormat... formats) {
+        Map<String, String> carrier = new LinkedHashMap<>();
+        FormatPropagation.newFactory(Arrays.asList(formats)).create(Propagation.KeyFactory.STRING)
+                .injector(MAP_SETTER).inject(context, carrier);
+        return carrier;
+    }
+
+    static TraceContextOrSamplingFlags extract(Map<String, String> carrier, PropagationFormat... formats) {
+        return FormatPropagation.newFactory(Arrays.asList(formats)).create(Propagation.KeyFactory.STRING)
+                .extractor(MAP_GETTER).extract(carrier);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchingReporterTest {
+
+    final static Span SPAN = Span.newBuilder().traceId("1").id("2").name("get").build();
+
+    @Test
+    public void flushesWithinLatencyBound() throws Exception {
+        RecordingSender sender = new RecordingSender(Encoding.JSON, false);
+        AdaptiveBatchingReporter<Span> reporter = AdaptiveBatchingReporter.newBuilder(AsyncReporter.builder(sender))
+                .maxExportLatency(50, TimeUnit.MILLISECONDS)
+                .build(SpanBytesEncoder.JSON_V2);
+        try {
+            long start = System.nanoTime();
+            reporter.report(SPAN);
+            while (sender.sent.isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, sender.sent.size());
+            assertTrue(reporter.getFlushIntervalNanos() <= TimeUnit.MILLISECONDS.toNanos(50));
+        } finally {
+            reporter.close();
+        }
+    }
+
+    @Test
+    public void sizesBatchesFromArrivalRate() throws Exception {
+        RecordingSender sender = new RecordingSender(Encoding.JSON, false);
+        AdaptiveBatchingReporter<Span> reporter = AdaptiveBatchingReporter.newBuilder(AsyncReporter.builder(sender))
+                .maxExportLatency(200, TimeUnit.MILLISECONDS)
+                .build(SpanBytesEncoder.JSON_V2);
+        int reported = 0;
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (System.nanoTime() < end) {
+                reporter.report(SPAN);
+                reported++;
+                if (reported % 100 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue(reporter.getArrivalBytesPerSecond() > 0);
+            assertTrue(reporter.getTargetBatchBytes() > SpanBytesEncoder.JSON_V2.sizeInBytes(SPAN));
+            // batches are filled rather than sent one span at a time
+            assertTrue(reporter.getFlushes() < reported / 10);
+        } finally {
+            reporter.close();
+        }
+        assertEquals(reported, sender.sent.size() + reporter.metrics().spansDropped());
+    }
+
+    @Test
+    public void idleController_parks() throws Exception {
+        RecordingSender sender = new RecordingSender(Encoding.JSON, false);
+        AdaptiveBatchingReporter<Span> reporter = AdaptiveBatchingReporter.newBuilder(AsyncReporter.builder(sender))
+                .name("idle")
+                .maxExportLatency(10, TimeUnit.MILLISECONDS)
+                .build(SpanBytesEncoder.JSON_V2);
+        try {
+            // an idle period longer than the interval used to leave a negative wait and spin
+            reporter.report(SPAN);
+            Thread.sleep(200);
+            Thread controller = null;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("AdaptiveBatchingReporter{idle}")) {
+                    controller = thread;
+                }
+            }
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpu = threads.getThreadCpuTime(controller.getId());
+            Thread.sleep(500);
+            long used = threads.getThreadCpuTime(controller.getId()) - cpu;
+
+            assertEquals(Thread.State.TIMED_WAITING, controller.getState());
+            assertTrue("controller used " + used + "ns while idle", used < TimeUnit.MILLISECONDS.toNanos(100));
+        } finally {
+            reporter.close();
+        }
+    }
+
+    @Test
+    public void intervalRunsFromOldestQueuedSpan() throws Exception {
+        RecordingSender sender = new RecordingSender(Encoding.JSON, false);
+        AdaptiveBatchingReporter<Span> reporter = AdaptiveBatchingReporter.newBuilder(AsyncReporter.builder(sender))
+                .maxExportLatency(1, TimeUnit.SECONDS)
+                .build(SpanBytesEncoder.JSON_V2);
+        try {
+            // idle for longer than the interval: the first span after it waits for company instead of going out alone
+            Thread.sleep(1200);
+            long start = System.nanoTime();
+            reporter.report(SPAN);
+            Thread.sleep(300);
+            assertTrue(sender.sent.isEmpty());
+            reporter.report(SPAN);
+            while (sender.sent.size() < 2 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+                Thread.sleep(1);
+            }
+            assertEquals(2, sender.sent.size());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        } finally {
+            reporter.close();
+        }
+    }
+
+    @Test
+    public void closeDrainsQueue() {
+        RecordingSender sender = new RecordingSender(Encoding.JSON, false);
+        AdaptiveBatchingReporter<Span> reporter = AdaptiveBatchingReporter.newBuilder(AsyncReporter.builder(sender))
+                .maxExportLatency(10, TimeUnit.SECONDS)
+                .build(SpanBytesEncoder.JSON_V2);
+        for (int i = 0; i < 5; i++) {
+            reporter.report(SPAN);
+        }
+        reporter.close();
+
+        assertEquals(5, sender.sent.size());
+        assertEquals(0, reporter.metrics().spansDropped());
+    }
+
+    @Test
+    public void exposesChosenValuesAsMBean() throws Exception {
+        RecordingSender sender = new RecordingSender(Encoding.JSON, false);
+        AdaptiveBatchingReporter<Span> reporter = AdaptiveBatchingReporter.newBuilder(AsyncReporter.builder(sender))
+                .name("jmx")
+                .maxExportLatency(100, TimeUnit.MILLISECONDS)
+                .build(SpanBytesEncoder.JSON_V2);
+        ObjectName name = new ObjectName("io.opentracing.contrib.specialagent:type=AdaptiveBatchingReporter,name=\"jmx\"");
+        try {
+            assertEquals(reporter.getFlushIntervalNanos(),
+                    ManagementFactory.getPlatformMBeanServer().getAttribute(name, "FlushIntervalNanos"));
+        } finally {
+            reporter.close();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutReporterTest {
+
+    final static Span SPAN = Span.newBuilder().traceId("1").id("2").name("get").build();
+
+    @Test
+    public void encodesOncePerEncoder() {
+        RecordingSender kafka = new RecordingSender(Encoding.JSON, false);
+        RecordingSender rabbit = new RecordingSender(Encoding.JSON, false);
+        RecordingSender proto = new RecordingSender(Encoding.PROTO3, false);
+        FanOutReporter reporter = FanOutReporter.newBuilder()
+                .addDestination("kafka", SpanBytesEncoder.JSON_V2, manualFlush(kafka))
+                .addDestination("rabbit", SpanBytesEncoder.JSON_V2, manualFlush(rabbit))
+                .addDestination("proto", SpanBytesEncoder.PROTO3, manualFlush(proto))
+                .build();
+
+        reporter.report(SPAN);
+        reporter.flush();
+
+        assertEquals(1, kafka.sent.size());
+        assertSame(kafka.sent.get(0), rabbit.sent.get(0));
+        assertNotSame(kafka.sent.get(0), proto.sent.get(0));
+        assertArrayEquals(SpanBytesEncoder.PROTO3.encode(SPAN), proto.sent.get(0));
+        assertEquals(1, reporter.metrics("rabbit").spans());
+        reporter.close();
+    }
+
+    @Test
+    public void slowDestinationDoesNotHoldBackOthers() throws Exception {
+        RecordingSender slow = new RecordingSender(Encoding.JSON, true);
+        RecordingSender fast = new RecordingSender(Encoding.JSON, false);
+        FanOutReporter reporter = FanOutReporter.newBuilder()
+                .addDestination("slow", SpanBytesEncoder.JSON_V2, AsyncReporter.builder(slow)
+                        .messageTimeout(10, TimeUnit.MILLISECONDS)
+                        .queuedMaxSpans(2))
+                .addDestination("fast", SpanBytesEncoder.JSON_V2, AsyncReporter.builder(fast)
+                        .messageTimeout(10, TimeUnit.MILLISECONDS))
+                .build();
+        try {
+            // park the slow destination's sender thread in a send, so what follows can only queue
+            reporter.report(SPAN);
+            assertTrue(slow.sending.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < 10; i++) {
+                reporter.report(SPAN);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (fast.sent.size() < 10 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(10, fast.sent.size());
+            assertEquals(0, slow.sent.size());
+            // the slow destination's bounded queue overflowed and accounted its own drops
+            assertTrue(reporter.metrics("slow").spansDropped() > 0);
+            assertEquals(0, reporter.metrics("fast").spansDropped());
+        } finally {
+            slow.release();
+            reporter.close();
+        }
+    }
+
+    @Test
+    public void flushAndClose_runOnEveryDestinationAtOnce() throws Exception {
+        RecordingSender slow = new RecordingSender(Encoding.JSON, true);
+        RecordingSender fast = new RecordingSender(Encoding.JSON, false);
+        final FanOutReporter reporter = FanOutReporter.newBuilder()
+                .addDestination("slow", SpanBytesEncoder.JSON_V2, manualFlush(slow))
+                .addDestination("fast", SpanBytesEncoder.JSON_V2, manualFlush(fast))
+                .build();
+        reporter.report(SPAN);
+        Thread flushing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reporter.flush();
+            }
+        });
+        flushing.start();
+        try {
+            assertTrue(slow.sending.await(5, TimeUnit.SECONDS));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (fast.sent.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            // the fast destination was flushed while the slow one is still sending
+            assertEquals(1, fast.sent.size());
+            assertTrue(flushing.isAlive());
+        } finally {
+            slow.release();
+            flushing.join();
+        }
+        reporter.close();
+        assertEquals(1, slow.sent.size());
+    }
+
+    static AsyncReporter.Builder manualFlush(RecordingSender sender) {
+        return AsyncReporter.builder(sender).messageTimeout(0, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.reporter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.Sender;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShutdownDrainTest {
+
+    final static Span SPAN = Span.newBuilder().traceId("1").id("2").name("get").build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void drain_sendsQueuedSpansConcurrently() throws Exception {
+        ConcurrentSender sender = new ConcurrentSender(false);
+        ShutdownDrain drain = ShutdownDrain.newBuilder().concurrency(4).spillDirectory(folder.getRoot()).build();
+        AsyncReporter<Span> reporter = reporter(drain.wrap(sender, "default"));
+        for (int i = 0; i < 200; i++) {
+            reporter.report(SPAN);
+        }
+
+        ShutdownDrain.Result result = drain.drain(reporter);
+        assertEquals(200, result.drained());
+        assertEquals(0, result.spilled());
+        assertEquals(0, result.lost());
+        assertEquals(200, sender.sent.get());
+        assertTrue(sender.maxConcurrent.get() > 1);
+        assertFalse(new File(folder.getRoot(), "default.spans").exists());
+    }
+
+    @Test
+    public void drain_spillsFailedRequests() {
+        ConcurrentSender sender = new ConcurrentSender(true);
+        ShutdownDrain drain = ShutdownDrain.newBuilder().spillDirectory(folder.getRoot()).build();
+        AsyncReporter<Span> reporter = reporter(drain.wrap(sender, "default"));
+        for (int i = 0; i < 50; i++) {
+            reporter.report(SPAN);
+        }
+
+        ShutdownDrain.Result result = drain.drain(reporter);
+        assertEquals(0, result.drained());
+        assertEquals(50, result.spilled());
+        assertEquals(0, result.lost());
+    }
+
+    @Test
+    public void drain_spillsWhatMissesTheDeadline_andTheNextStartReplaysIt() throws Exception {
+        RecordingSender stuck = new RecordingSender(Encoding.JSON, true);
+        ShutdownDrain drain = ShutdownDrain.newBuilder()
+                .timeout(100, TimeUnit.MILLISECONDS)
+                .concurrency(2)
+                .spillDirectory(folder.getRoot())
+                .build();
+        AsyncReporter<Span> reporter = reporter(drain.wrap(stuck, "default"));
+        for (int i = 0; i < 100; i++) {
+            reporter.report(SPAN);
+        }
+
+        ShutdownDrain.Result result;
+        try {
+            result = drain.drain(reporter);
+        } finally {
+            stuck.release();
+        }
+        // the two requests stuck at the deadline are lost, everything still queued is spilled
+        assertEquals(0, result.drained());
+        assertTrue(result.lost() > 0);
+        assertEquals(100, result.spilled() + result.lost());
+
+        RecordingSender restarted = new RecordingSender(Encoding.JSON, false);
+        ShutdownDrain.newBuilder().spillDirectory(folder.getRoot()).build().wrap(restarted, "default");
+        long start = System.nanoTime();
+        while (restarted.sent.size() < result.spilled() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(1);
+        }
+        assertEquals(result.spilled(), restarted.sent.size());
+        assertEquals(SPAN, SpanBytesDecoder.JSON_V2.decodeOne(restarted.sent.get(0)));
+        while (folder.getRoot().list().length > 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void spillFile_readsBackCompleteRecords() throws Exception {
+        File file = folder.newFile("default.spans");
+        SpillFile spillFile = new SpillFile(file);
+        byte[] span = SpanBytesEncoder.PROTO3.encode(SPAN);
+        spillFile.append(Encoding.PROTO3, Arrays.asList(span, span));
+        spillFile.append(Encoding.JSON, Collections.singletonList(SpanBytesEncoder.JSON_V2.encode(SPAN)));
+
+        List<SpillFile.Record> records = SpillFile.read(file);
+        assertEquals(2, records.size());
+        assertEquals(Encoding.PROTO3, records.get(0).encoding);
+        assertEquals(2, records.get(0).spans.size());
+        assertEquals(Encoding.JSON, records.get(1).encoding);
+    }
+
+    @Test
+    public void replay_claimsEachFileOnce() throws Exception {
+        SpillFile spillFile = new SpillFile(new File(folder.getRoot(), "default.spans"));
+        for (int i = 0; i < 3; i++) {
+            spillFile.append(Encoding.JSON, Collections.singletonList(SpanBytesEncoder.JSON_V2.encode(SPAN)));
+        }
+
+        // the first start holds its file while the sender is stuck; a second start finds nothing left to replay
+        RecordingSender first = new RecordingSender(Encoding.JSON, true);
+        ShutdownDrain.newBuilder().spillDirectory(folder.getRoot()).build().wrap(first, "default");
+        assertTrue(first.sending.await(5, TimeUnit.SECONDS));
+        RecordingSender second = new RecordingSender(Encoding.JSON, false);
+        ShutdownDrain.newBuilder().spillDirectory(folder.getRoot()).build().wrap(second, "default");
+        first.release();
+
+        long start = System.nanoTime();
+        while (folder.getRoot().list().length > 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, folder.getRoot().list().length);
+        assertEquals(3, first.sent.size());
+        assertTrue(second.sent.isEmpty());
+    }
+
+    @Test
+    public void replay_keepsRecordsOfAnotherEncoding() throws Exception {
+        File file = new File(folder.getRoot(), "default.spans");
+        SpillFile spillFile = new SpillFile(file);
+        spillFile.append(Encoding.PROTO3, Collections.singletonList(SpanBytesEncoder.PROTO3.encode(SPAN)));
+        spillFile.append(Encoding.JSON, Collections.singletonList(SpanBytesEncoder.JSON_V2.encode(SPAN)));
+
+        RecordingSender restarted = new RecordingSender(Encoding.JSON, false);
+        ShutdownDrain.newBuilder().spillDirectory(folder.getRoot()).build().wrap(restarted, "default");
+        long start = System.nanoTime();
+        while (!Arrays.asList(folder.getRoot().list()).equals(Collections.singletonList("default.spans"))
+                && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, restarted.sent.size());
+        assertEquals(Collections.singletonList("default.spans"), Arrays.asList(folder.getRoot().list()));
+        List<SpillFile.Record> kept = SpillFile.read(file);
+        assertEquals(1, kept.size());
+        assertEquals(Encoding.PROTO3, kept.get(0).encoding);
+    }
+
+    static AsyncReporter<Span> reporter(Sender sender) {
+        // no flush thread, and small batches so draining takes many requests
+        return AsyncReporter.builder(sender)
+                .messageTimeout(0, TimeUnit.NANOSECONDS)
+                .messageMaxBytes(1024)
+                .build(SpanBytesEncoder.JSON_V2);
+    }
+
+    /** Takes a few milliseconds per request and records how many overlap. */
+    static class ConcurrentSender extends Sender {
+        final boolean failing;
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        ConcurrentSender(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.JSON;
+        }
+
+        @Override
+        public int messageMaxBytes() {
+            return 1024 * 1024;
+        }
+
+        @Override
+        public int messageSizeInBytes(List<byte[]> encodedSpans) {
+            return Encoding.JSON.listSizeInBytes(encodedSpans);
+        }
+
+        @Override
+        public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+            int now = concurrent.incrementAndGet();
+            try {
+                while (true) {
+                    int max = maxConcurrent.get();
+                    if (now <= max || maxConcurrent.compareAndSet(max, now)) {
+                        break;
+                    }
+                }
+                Thread.sleep(5);
+                if (failing) {
+                    throw new IllegalStateException("unavailable");
+                }
+                sent.addAndGet(encodedSpans.size());
+                return Call.create(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+}
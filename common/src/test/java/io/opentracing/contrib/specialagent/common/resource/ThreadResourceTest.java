@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.resource;
+
+import brave.Tracing;
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadResourceTest {
+
+    final List<Span> reported = new CopyOnWriteArrayList<>();
+    Tracing tracing;
+
+    @After
+    public void close() {
+        if (tracing != null) {
+            tracing.close();
+        }
+    }
+
+    Tracing tracing(Sampler sampler) {
+        return tracing = Tracing.newBuilder()
+                .sampler(sampler)
+                .propagationFactory(ThreadResourcePropagationFactory.create(B3Propagation.FACTORY))
+                .addFinishedSpanHandler(ThreadResourceHandler.create())
+                .spanReporter(new Reporter<Span>() {
+                    @Override
+                    public void report(Span span) {
+                        reported.add(span);
+                    }
+                })
+                .build();
+    }
+
+    @Test
+    public void sampledSpan_taggedWithDeltas() {
+        brave.Span span = tracing(Sampler.ALWAYS_SAMPLE).tracer().newTrace().name("work").start();
+        byte[] allocated = new byte[1 << 20];
+        span.tag("length", Integer.toString(allocated.length));
+        span.finish();
+
+        assertEquals(1, reported.size());
+        String allocatedBytes = reported.get(0).tags().get(ThreadResourceHandler.ALLOCATED_BYTES_TAG);
+        assertTrue(Long.parseLong(allocatedBytes) >= 1 << 20);
+        assertTrue(Long.parseLong(reported.get(0).tags().get(ThreadResourceHandler.CPU_TIME_TAG)) >= 0);
+    }
+
+    @Test
+    public void unsampledSpan_notMeasured() {
+        TraceContext context = tracing(Sampler.NEVER_SAMPLE).tracer().newTrace().context();
+        assertTrue(context.extra().isEmpty());
+    }
+
+    @Test
+    public void decorate_childReplacesParentReading() {
+        Propagation.Factory factory = ThreadResourcePropagationFactory.create(B3Propagation.FACTORY);
+        TraceContext parent = factory.decorate(TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build());
+        // decorating an already decorated context, as currentSpan() does, keeps the first reading
+        assertSame(parent, factory.decorate(parent));
+
+        TraceContext child = factory.decorate(parent.toBuilder().parentId(2L).spanId(3L).build());
+        assertEquals(1, child.extra().size());
+        assertEquals(3L, child.findExtra(ThreadResourceUsage.class).spanId);
+        assertNotEquals(parent.findExtra(ThreadResourceUsage.class), child.findExtra(ThreadResourceUsage.class));
+    }
+
+    @Test
+    public void finishedOnAnotherThread_untagged() throws Exception {
+        final brave.Span span = tracing(Sampler.ALWAYS_SAMPLE).tracer().newTrace().name("async").start();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                span.finish();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertEquals(1, reported.size());
+        assertFalse(reported.get(0).tags().containsKey(ThreadResourceHandler.CPU_TIME_TAG));
+        assertNull(reported.get(0).tags().get(ThreadResourceHandler.ALLOCATED_BYTES_TAG));
+    }
+}
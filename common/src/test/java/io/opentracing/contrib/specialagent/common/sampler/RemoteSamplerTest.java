@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.Tracing;
+import brave.opentracing.BraveTracer;
+import brave.sampler.Sampler;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.reporter.Reporter;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteSamplerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    StrategyServer server;
+    RemoteSampler sampler;
+
+    @Before
+    public void start() throws Exception {
+        server = new StrategyServer();
+    }
+
+    @After
+    public void stop() {
+        if (sampler != null) {
+            sampler.close();
+        }
+        server.stop();
+    }
+
+    RemoteSampler sampler(File cacheFile) {
+        return sampler = RemoteSampler.newBuilder(server.url())
+                .serviceName("orders")
+                .fallback(Sampler.ALWAYS_SAMPLE)
+                .refreshInterval(1, TimeUnit.HOURS)
+                .cacheFile(cacheFile)
+                .build();
+    }
+
+    @Test
+    public void parse_serviceRulesOverrideUnscopedOnes() throws Exception {
+        SamplingStrategy strategy = SamplingStrategy.parse(properties(
+                "default.probability=1\n"
+                        + "operation.GET\\ /health.probability=0\n"
+                        + "service.orders.default.probability=0\n"
+                        + "service.orders.operation.checkout.rate_limit=5\n"
+                        + "service.billing.default.probability=1\n"), "orders", Sampler.ALWAYS_SAMPLE);
+
+        assertSame(Sampler.NEVER_SAMPLE, strategy.defaultSampler);
+        assertSame(Sampler.NEVER_SAMPLE, strategy.operations.get("GET /health"));
+        assertTrue(strategy.operations.get("checkout").isSampled(1L));
+        assertEquals(2, strategy.operations.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsInvalidProbability() throws Exception {
+        SamplingStrategy.parse(properties("default.probability=1.5"), "orders", Sampler.ALWAYS_SAMPLE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsUrlsOtherThanHttp() {
+        RemoteSampler.newBuilder("file:///etc/sampling.properties").build();
+    }
+
+    @Test
+    public void fallsBackUntilFirstFetchSucceeds() {
+        server.status = 503;
+        sampler(null);
+        assertFalse(sampler.refresh());
+        assertFalse(sampler.hasStrategy());
+        assertTrue(sampler.isSampled(1L));
+
+        server.status = 200;
+        server.document = "default.probability=0\n";
+        assertTrue(sampler.refresh());
+        assertFalse(sampler.isSampled(1L));
+        assertTrue(server.queries.contains("service=orders"));
+    }
+
+    @Test
+    public void keepsLastGoodStrategy() {
+        server.document = "default.probability=0\noperation.checkout.probability=1\n";
+        sampler(null);
+        assertTrue(sampler.refresh());
+        Sampler checkout = sampler.operationSampler("checkout");
+
+        server.document = "default.probability=oops\n";
+        assertFalse(sampler.refresh());
+        assertFalse(sampler.isSampled(1L));
+        assertSame(checkout, sampler.operationSampler("checkout"));
+    }
+
+    @Test
+    public void restartsFromCache() throws Exception {
+        File cache = new File(folder.getRoot(), "sampling/orders.properties");
+        server.document = "default.probability=0\n";
+        sampler(cache).refresh();
+        sampler.close();
+        assertTrue(cache.isFile());
+
+        server.status = 503;
+        sampler(cache);
+        assertTrue(sampler.hasStrategy());
+        assertFalse(sampler.isSampled(1L));
+    }
+
+    @Test
+    public void unchangedDocument_isNotCachedAgain() throws Exception {
+        File cache = new File(folder.getRoot(), "orders.properties");
+        server.document = "default.probability=0\n";
+        sampler(cache).refresh();
+        sampler.close();
+        assertTrue(cache.setLastModified(1000L));
+
+        // a restart has no ETag to send, so the same document is fetched again
+        sampler(cache).refresh();
+        assertEquals(1000L, cache.lastModified());
+
+        server.document = "default.probability=1\n";
+        sampler.refresh();
+        assertTrue(cache.lastModified() != 1000L);
+    }
+
+    @Test
+    public void operationRulesDecideRootSpans() throws Exception {
+        server.document = "default.probability=1\noperation.health.probability=0\n";
+        sampler(null).refresh();
+        DecidedSampler decidedSampler = DecidedSampler.create(sampler);
+        Tracing tracing = Tracing.newBuilder().sampler(decidedSampler).build();
+        Tracer tracer = OperationSamplingTracer.create(BraveTracer.create(tracing), sampler, decidedSampler);
+        try {
+            assertFalse(sampled(tracer.buildSpan("health").start()));
+            assertTrue(sampled(tracer.buildSpan("checkout").start()));
+
+            // a child follows its parent, whatever the rule of its own operation
+            Span parent = tracer.buildSpan("checkout").start();
+            try (Scope scope = tracer.activateSpan(parent)) {
+                assertTrue(sampled(tracer.buildSpan("health").start()));
+            }
+            assertTrue(sampled(tracer.buildSpan("health").asChildOf(parent).ignoreActiveSpan().start()));
+        } finally {
+            tracer.close();
+        }
+        assertNull(Tracing.currentTracer());
+    }
+
+    @Test
+    public void operationDecision_isNotReportedAsTag() throws Exception {
+        server.document = "default.probability=0\noperation.checkout.probability=1\n";
+        sampler(null).refresh();
+        final List<zipkin2.Span> reported = new ArrayList<>();
+        DecidedSampler decidedSampler = DecidedSampler.create(sampler);
+        Tracing tracing = Tracing.newBuilder().sampler(decidedSampler).spanReporter(new Reporter<zipkin2.Span>() {
+            @Override
+            public void report(zipkin2.Span span) {
+                reported.add(span);
+            }
+        }).build();
+        Tracer tracer = OperationSamplingTracer.create(BraveTracer.create(tracing), sampler, decidedSampler);
+        try {
+            tracer.buildSpan("checkout").withTag("http.method", "POST").start().finish();
+            // the decision only applied to that start
+            assertFalse(sampled(tracer.buildSpan("get").start()));
+        } finally {
+            tracer.close();
+        }
+
+        assertEquals(1, reported.size());
+        assertEquals(Collections.singletonMap("http.method", "POST"), reported.get(0).tags());
+    }
+
+    static boolean sampled(Span span) {
+        return ((brave.opentracing.BraveSpanContext) span.context()).unwrap().sampled();
+    }
+
+    static Properties properties(String document) throws Exception {
+        Properties properties = new Properties();
+        properties.load(new StringReader(document));
+        return properties;
+    }
+}
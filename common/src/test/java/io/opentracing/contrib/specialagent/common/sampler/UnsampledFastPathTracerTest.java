@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sampler;
+
+import brave.Tracing;
+import brave.opentracing.BraveTracer;
+import brave.sampler.Sampler;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapAdapter;
+import io.opentracing.tag.Tags;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import zipkin2.reporter.Reporter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UnsampledFastPathTracerTest {
+
+    final List<zipkin2.Span> reported = new CopyOnWriteArrayList<>();
+    Tracing tracing;
+
+    @After
+    public void close() {
+        if (tracing != null) {
+            tracing.close();
+        }
+    }
+
+    Tracer tracer(Sampler sampler) {
+        close();
+        DecidedSampler decidedSampler = DecidedSampler.create(sampler);
+        tracing = Tracing.newBuilder()
+                .sampler(decidedSampler)
+                .spanReporter(new Reporter<zipkin2.Span>() {
+                    @Override
+                    public void report(zipkin2.Span span) {
+                        reported.add(span);
+                    }
+                })
+                .build();
+        return UnsampledFastPathTracer.create(BraveTracer.create(tracing), tracing.currentTraceContext(), decidedSampler);
+    }
+
+    @Test
+    public void unsampledTrace_sharesOneSpan() {
+        Tracer tracer = tracer(Sampler.NEVER_SAMPLE);
+        Span root = tracer.buildSpan("get /orders").withTag(Tags.HTTP_METHOD, "GET").start();
+        assertTrue(root.context() instanceof UnsampledFastPathTracer.UnsampledContext);
+
+        Scope scope = tracer.activateSpan(root);
+        Span child = tracer.buildSpan("select orders").withTag("db.statement", "select 1").start();
+        assertSame(root, child);
+        assertSame(root, tracer.activeSpan());
+        Scope childScope = tracer.activateSpan(child);
+        child.setTag("rows", 3).log("fetched").finish();
+        childScope.close();
+        assertSame(root, tracer.activeSpan());
+        scope.close();
+        root.finish();
+
+        assertNull(tracer.activeSpan());
+        assertTrue(reported.isEmpty());
+    }
+
+    @Test
+    public void sampledTrace_isBuiltByTheBridge() {
+        Tracer tracer = tracer(Sampler.ALWAYS_SAMPLE);
+        Span root = tracer.buildSpan("get /orders").withTag("component", "servlet").start();
+        Scope scope = tracer.activateSpan(root);
+        Span child = tracer.buildSpan("select orders")
+                .withTag("a", "1").withTag("b", true).withTag("c", 3).withTag(Tags.SPAN_KIND, Tags.SPAN_KIND_CLIENT)
+                .withTag("e", "5").withTag("f", "6")
+                .start();
+        child.finish();
+        scope.close();
+        root.finish();
+
+        assertEquals(2, reported.size());
+        zipkin2.Span reportedChild = reported.get(0);
+        assertEquals(reported.get(1).id(), reportedChild.parentId());
+        assertEquals(zipkin2.Span.Kind.CLIENT, reportedChild.kind());
+        assertEquals("true", reportedChild.tags().get("b"));
+        assertEquals("6", reportedChild.tags().get("f"));
+        assertFalse(reportedChild.tags().containsKey(Tags.SAMPLING_PRIORITY.getKey()));
+        assertEquals(Collections.singletonMap("component", "servlet"), reported.get(1).tags());
+    }
+
+    @Test
+    public void samplingPriority_winsOverTheSampler() {
+        Tracer tracer = tracer(Sampler.NEVER_SAMPLE);
+        tracer.buildSpan("debug").withTag(Tags.SAMPLING_PRIORITY, 1).start().finish();
+        assertEquals(1, reported.size());
+
+        tracer = tracer(Sampler.ALWAYS_SAMPLE);
+        assertTrue(tracer.buildSpan("health").withTag(Tags.SAMPLING_PRIORITY.getKey(), "0").start() instanceof UnsampledSpan);
+    }
+
+    @Test
+    public void unsampledParent_keepsItsIdsForPropagation() {
+        Tracer tracer = tracer(Sampler.ALWAYS_SAMPLE);
+        Map<String, String> incoming = new LinkedHashMap<>();
+        incoming.put("X-B3-TraceId", "463ac35c9f6413ad48485a3953bb6124");
+        incoming.put("X-B3-SpanId", "a2fb4a1d1a96d312");
+        incoming.put("X-B3-Sampled", "0");
+        SpanContext extracted = tracer.extract(Format.Builtin.HTTP_HEADERS, new TextMapAdapter(incoming));
+
+        Span server = tracer.buildSpan("get /orders").asChildOf(extracted).start();
+        assertTrue(server instanceof UnsampledSpan);
+        Scope scope = tracer.activateSpan(server);
+        Span client = tracer.buildSpan("get /inventory").start();
+        assertSame(server, client);
+
+        Map<String, String> outgoing = new LinkedHashMap<>();
+        tracer.inject(client.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(outgoing));
+        scope.close();
+        assertEquals("463ac35c9f6413ad48485a3953bb6124", outgoing.get("X-B3-TraceId"));
+        assertEquals("0", outgoing.get("X-B3-Sampled"));
+        assertTrue(reported.isEmpty());
+    }
+
+    @Test
+    public void unsampledRoot_makesUpIdsOnceWhenInjected() {
+        Tracer tracer = tracer(Sampler.NEVER_SAMPLE);
+        Span root = tracer.buildSpan("job").start();
+        Scope scope = tracer.activateSpan(root);
+        Span child = tracer.buildSpan("step").start();
+
+        Map<String, String> first = new LinkedHashMap<>();
+        tracer.inject(root.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(first));
+        Map<String, String> second = new LinkedHashMap<>();
+        tracer.inject(child.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(second));
+        scope.close();
+
+        assertEquals("0", first.get("X-B3-Sampled"));
+        assertEquals(16, first.get("X-B3-TraceId").length());
+        assertEquals(first, second);
+        assertEquals(first.get("X-B3-TraceId"), root.context().toTraceId());
+        assertEquals(first.get("X-B3-SpanId"), root.context().toSpanId());
+
+        // another trace gets its own ids
+        assertNotEquals(root.context().toTraceId(), tracer.buildSpan("job").start().context().toTraceId());
+        assertTrue(reported.isEmpty());
+    }
+
+    @Test
+    public void newTrace_isDecidedOnItsTraceId() {
+        final List<Long> asked = new CopyOnWriteArrayList<>();
+        Tracer tracer = tracer(new Sampler() {
+            @Override
+            public boolean isSampled(long traceId) {
+                asked.add(traceId);
+                return false;
+            }
+        });
+        Span root = tracer.buildSpan("job").start();
+
+        assertEquals(1, asked.size());
+        assertEquals(String.format("%016x", asked.get(0)), root.context().toTraceId());
+    }
+
+    @Test
+    public void unsampledTrace_followsWrappedExecutorsToOtherThreads() throws Exception {
+        final Tracer tracer = tracer(Sampler.ALWAYS_SAMPLE);
+        final brave.Tracer braveTracer = tracing.tracer();
+        Span root = tracer.buildSpan("poll").withTag(Tags.SAMPLING_PRIORITY, 0).start();
+        ExecutorService executor = tracing.currentTraceContext().executorService(Executors.newSingleThreadExecutor());
+        try {
+            Future<Map<String, String>> injected;
+            Future<brave.propagation.TraceContext> braveChild;
+            try (Scope scope = tracer.activateSpan(root)) {
+                injected = executor.submit(new Callable<Map<String, String>>() {
+                    @Override
+                    public Map<String, String> call() {
+                        Span child = tracer.buildSpan("handle").start();
+                        assertTrue(child instanceof UnsampledSpan);
+                        child.finish();
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        tracer.inject(child.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(headers));
+                        return headers;
+                    }
+                });
+                braveChild = executor.submit(new Callable<brave.propagation.TraceContext>() {
+                    @Override
+                    public brave.propagation.TraceContext call() {
+                        brave.Span child = braveTracer.nextSpan().start();
+                        child.finish();
+                        return child.context();
+                    }
+                });
+            }
+
+            assertEquals(root.context().toTraceId(), injected.get(5, TimeUnit.SECONDS).get("X-B3-TraceId"));
+            assertEquals("0", injected.get().get("X-B3-Sampled"));
+            assertEquals(root.context().toTraceId(), braveChild.get(5, TimeUnit.SECONDS).traceIdString());
+            assertEquals(Boolean.FALSE, braveChild.get().sampled());
+            assertNull(tracing.currentTraceContext().get());
+            assertTrue(reported.isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sampledScope_hidesTheUnsampledSpan() {
+        Tracer tracer = tracer(Sampler.NEVER_SAMPLE);
+        Span unsampled = tracer.buildSpan("poll").start();
+        Scope outer = tracer.activateSpan(unsampled);
+
+        Span sampled = tracer.buildSpan("debug").ignoreActiveSpan().withTag(Tags.SAMPLING_PRIORITY, 1).start();
+        assertFalse(sampled instanceof UnsampledSpan);
+        Scope inner = tracer.activateSpan(sampled);
+        Span child = tracer.buildSpan("child").start();
+        assertFalse(child instanceof UnsampledSpan);
+        child.finish();
+        inner.close();
+        sampled.finish();
+
+        assertSame(unsampled, tracer.activeSpan());
+        outer.close();
+        assertEquals(2, reported.size());
+        assertEquals(reported.get(1).id(), reported.get(0).parentId());
+    }
+
+    @Test
+    public void unsampledSpans_allocateFarLessThanTheBridge() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        Tracer tracer = tracer(Sampler.NEVER_SAMPLE);
+        Tracer bridge = BraveTracer.create(tracing);
+
+        long fastPath = allocatedBytesPerSpan(tracer);
+        long viaBridge = allocatedBytesPerSpan(bridge);
+        assertTrue(fastPath + " vs " + viaBridge, fastPath * 4 < viaBridge);
+    }
+
+    static long allocatedBytesPerSpan(Tracer tracer) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Span parent = tracer.buildSpan("get /orders").start();
+        Scope parentScope = tracer.activateSpan(parent);
+        try {
+            int spans = 20000;
+            for (int i = 0; i < spans; i++) {
+                span(tracer);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < spans; i++) {
+                span(tracer);
+            }
+            return (threads.getThreadAllocatedBytes(threadId) - before) / spans;
+        } finally {
+            parentScope.close();
+        }
+    }
+
+    static void span(Tracer tracer) {
+        Span span = tracer.buildSpan("select orders").withTag(Tags.DB_TYPE, "sql").start();
+        Scope scope = tracer.activateSpan(span);
+        scope.close();
+        span.finish();
+    }
+}
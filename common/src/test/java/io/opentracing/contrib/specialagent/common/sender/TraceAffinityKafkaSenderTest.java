@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package io.opentracing.contrib.specialagent.common.sender;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Test;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceAffinityKafkaSenderTest {
+
+    @Test
+    public void spansOfATraceShareAPartition() throws Exception {
+        for (SpanBytesEncoder encoder : SpanBytesEncoder.values()) {
+            MockProducer<byte[], byte[]> producer = mockProducer(8);
+            TraceAffinityKafkaSender sender = TraceAffinityKafkaSender.create(producer, "zipkin", encoder.encoding());
+            sender.refreshPartitions();
+
+            List<byte[]> batch = new ArrayList<>();
+            for (int span = 1; span <= 5; span++) {
+                for (int trace = 1; trace <= 20; trace++) {
+                    batch.add(encoder.encode(span(trace, span)));
+                }
+            }
+            sender.sendSpans(batch).execute();
+
+            Map<String, Integer> partitionOfTrace = new HashMap<>();
+            int spans = 0;
+            for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+                for (Span span : decoder(encoder).decodeList(record.value())) {
+                    Integer previous = partitionOfTrace.put(span.traceId(), record.partition());
+                    if (previous != null) {
+                        assertEquals(encoder + " " + span.traceId(), previous, record.partition());
+                    }
+                    spans++;
+                }
+            }
+            assertEquals(100, spans);
+            assertEquals(20, partitionOfTrace.size());
+            // one message per partition used, not one per span
+            assertEquals(new HashSet<>(partitionOfTrace.values()).size(), producer.history().size());
+        }
+    }
+
+    @Test
+    public void hashIgnoresTraceIdHigh() {
+        Span span64 = Span.newBuilder().traceId("48485a3953bb6124").id("1").build();
+        Span span128 = span64.toBuilder().traceId("463ac35c9f6413ad48485a3953bb6124").build();
+        for (SpanBytesEncoder encoder : new SpanBytesEncoder[]{SpanBytesEncoder.JSON_V2, SpanBytesEncoder.PROTO3}) {
+            assertEquals(TraceIdHash.hash(encoder.encoding(), encoder.encode(span64)),
+                    TraceIdHash.hash(encoder.encoding(), encoder.encode(span128)));
+        }
+    }
+
+    @Test
+    public void hashIsTheSameForEveryEncoding() {
+        for (int trace = 1; trace <= 20; trace++) {
+            Span span = span(trace, 1);
+            int json = TraceIdHash.hash(Encoding.JSON, SpanBytesEncoder.JSON_V2.encode(span));
+            assertEquals(json, TraceIdHash.hash(Encoding.JSON, SpanBytesEncoder.JSON_V1.encode(span)));
+            assertEquals(json, TraceIdHash.hash(SpanBytesEncoder.PROTO3.encoding(), SpanBytesEncoder.PROTO3.encode(span)));
+            assertEquals(json, TraceIdHash.hash(SpanBytesEncoder.THRIFT.encoding(), SpanBytesEncoder.THRIFT.encode(span)));
+        }
+    }
+
+    @Test
+    public void partitionIsHashModuloCount_whateverTheMetadataOrder() throws Exception {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> infos = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            infos.add(new PartitionInfo("zipkin", i, node, new Node[]{node}, new Node[]{node}));
+        }
+        Collections.shuffle(infos, new Random(42));
+        MockProducer<byte[], byte[]> producer = mockProducer(infos);
+        TraceAffinityKafkaSender sender = TraceAffinityKafkaSender.create(producer, "zipkin", Encoding.JSON);
+        sender.refreshPartitions();
+
+        List<byte[]> batch = new ArrayList<>();
+        for (int trace = 1; trace <= 20; trace++) {
+            batch.add(SpanBytesEncoder.JSON_V2.encode(span(trace, 1)));
+        }
+        sender.sendSpans(batch).execute();
+
+        for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+            for (Span span : SpanBytesDecoder.JSON_V2.decodeList(record.value())) {
+                int hash = TraceIdHash.hash(Encoding.JSON, SpanBytesEncoder.JSON_V2.encode(span));
+                assertEquals(span.traceId(), (hash & 0x7fffffff) % 8, (int) record.partition());
+            }
+        }
+    }
+
+    @Test
+    public void singlePartition_sendsBatchAsIs() throws Exception {
+        MockProducer<byte[], byte[]> producer = mockProducer(1);
+        TraceAffinityKafkaSender sender = TraceAffinityKafkaSender.create(producer, "zipkin", Encoding.JSON);
+
+        sender.sendSpans(Collections.singletonList(SpanBytesEncoder.JSON_V2.encode(span(1, 1)))).execute();
+        assertEquals(1, producer.history().size());
+        assertEquals(null, producer.history().get(0).partition());
+    }
+
+    @Test
+    public void partitionLookup_doesNotBlockTheSend() throws Exception {
+        final CountDownLatch metadata = new CountDownLatch(1);
+        Cluster empty = Cluster.empty();
+        MockProducer<byte[], byte[]> producer = new MockProducer<byte[], byte[]>(empty, true, new DefaultPartitioner(),
+                new ByteArraySerializer(), new ByteArraySerializer()) {
+            @Override
+            public List<PartitionInfo> partitionsFor(String topic) {
+                try {
+                    // like a producer waiting max.block.ms for a broker
+                    metadata.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.partitionsFor(topic);
+            }
+        };
+        TraceAffinityKafkaSender sender = TraceAffinityKafkaSender.create(producer, "zipkin", Encoding.JSON);
+        try {
+            sender.sendSpans(Collections.singletonList(SpanBytesEncoder.JSON_V2.encode(span(1, 1)))).execute();
+            assertEquals(1, producer.history().size());
+            assertEquals(null, producer.history().get(0).partition());
+        } finally {
+            metadata.countDown();
+            sender.close();
+        }
+    }
+
+    @Test
+    public void emptyBatch_completesTheCallback() throws Exception {
+        MockProducer<byte[], byte[]> producer = mockProducer(8);
+        TraceAffinityKafkaSender sender = TraceAffinityKafkaSender.create(producer, "zipkin", Encoding.JSON);
+        sender.refreshPartitions();
+        final CountDownLatch done = new CountDownLatch(1);
+        sender.sendSpans(Collections.<byte[]>emptyList()).enqueue(new Callback<Void>() {
+            @Override
+            public void onSuccess(Void value) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(producer.history().isEmpty());
+    }
+
+    static Span span(int trace, int span) {
+        return Span.newBuilder().traceId(Long.toHexString(trace * 7919L)).id(span + 1000L * trace).name("get").build();
+    }
+
+    static SpanBytesDecoder decoder(SpanBytesEncoder encoder) {
+        return SpanBytesDecoder.valueOf(encoder.name());
+    }
+
+    static MockProducer<byte[], byte[]> mockProducer(int partitions) {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> infos = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            infos.add(new PartitionInfo("zipkin", i, node, new Node[]{node}, new Node[]{node}));
+        }
+        return mockProducer(infos);
+    }
+
+    static MockProducer<byte[], byte[]> mockProducer(List<PartitionInfo> infos) {
+        Set<String> none = Collections.emptySet();
+        Cluster cluster = new Cluster("local", Collections.singletonList(infos.get(0).leader()), infos, none, none);
+        return new MockProducer<>(cluster, true, new DefaultPartitioner(), new ByteArraySerializer(), new ByteArraySerializer());
+    }
+}